@@ -0,0 +1,228 @@
+package com.dylanvann.cameraroll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.soloader.SoLoader;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Benchmarks {@link CameraRollManager#getPhotos} and {@link CameraRollManager#getAlbums} end to
+ * end, against synthetic libraries served by a {@link FakeMediaProvider}, and fails when a
+ * scenario is slower, allocates more or has a worse p99 latency than its threshold. It runs on a
+ * device or emulator because the bridge's maps and arrays are native.
+ *
+ * Thresholds are loose by default, so that the suite passes on a slow emulator; a CI device
+ * should pass tighter ones as instrumentation arguments, e.g.
+ * {@code -e minAssetsPerSecond 50000 -e maxAllocationsPerAsset 40 -e maxP99MsPer1000Assets 50}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CameraRollBenchmarkTest {
+
+  private static final String TAG = "CameraRollBenchmark";
+
+  private static final int[] SIZES = { 1000, 10000, 100000 };
+  private static final double[] VIDEO_RATIOS = { 0.1, 0.5 };
+  private static final int ITERATIONS = 5;
+  private static final long TIMEOUT_SECONDS = 120;
+
+  private static final double DEFAULT_MIN_ASSETS_PER_SECOND = 2000;
+  private static final double DEFAULT_MAX_ALLOCATIONS_PER_ASSET = 200;
+  private static final double DEFAULT_MAX_P99_MS_PER_1000_ASSETS = 1000;
+
+  private interface Scenario {
+    /**
+     * Make one call to {@code module} that reads all {@code size} assets of the library.
+     */
+    void call(CameraRollManager module, int size, Promise promise);
+  }
+
+  /**
+   * Gives the module the resolver of the fake provider. {@link ReactApplicationContext} wraps the
+   * application context of the context it is given, so that has to be this one too.
+   */
+  private static class BenchmarkContext extends ContextWrapper {
+    private final ContentResolver mResolver;
+
+    BenchmarkContext(Context base, ContentResolver resolver) {
+      super(base);
+      mResolver = resolver;
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+      return mResolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+      return this;
+    }
+  }
+
+  @BeforeClass
+  public static void loadBridge() {
+    SoLoader.init(InstrumentationRegistry.getTargetContext(), false);
+  }
+
+  @Test
+  public void getPhotosRows() throws InterruptedException {
+    benchmark("getPhotosRows", new Scenario() {
+      @Override
+      public void call(CameraRollManager module, int size, Promise promise) {
+        module.getPhotos(JavaOnlyMap.of("first", size), promise);
+      }
+    });
+  }
+
+  @Test
+  public void getPhotosColumnar() throws InterruptedException {
+    benchmark("getPhotosColumnar", new Scenario() {
+      @Override
+      public void call(CameraRollManager module, int size, Promise promise) {
+        module.getPhotos(JavaOnlyMap.of("first", size, "format", "columnar"), promise);
+      }
+    });
+  }
+
+  @Test
+  public void getAlbums() throws InterruptedException {
+    benchmark("getAlbums", new Scenario() {
+      @Override
+      public void call(CameraRollManager module, int size, Promise promise) {
+        module.getAlbums(JavaOnlyMap.of("previewCount", 1), promise);
+      }
+    });
+  }
+
+  @SuppressWarnings("deprecation")
+  private void benchmark(String name, Scenario scenario) throws InterruptedException {
+    Context targetContext = InstrumentationRegistry.getTargetContext();
+    Bundle arguments = InstrumentationRegistry.getArguments();
+    double minAssetsPerSecond =
+        getThreshold(arguments, "minAssetsPerSecond", DEFAULT_MIN_ASSETS_PER_SECOND);
+    double maxAllocationsPerAsset =
+        getThreshold(arguments, "maxAllocationsPerAsset", DEFAULT_MAX_ALLOCATIONS_PER_ASSET);
+    double maxP99MsPer1000Assets =
+        getThreshold(arguments, "maxP99MsPer1000Assets", DEFAULT_MAX_P99_MS_PER_1000_ASSETS);
+
+    List<String> failures = new ArrayList<>();
+    for (int size : SIZES) {
+      for (double videoRatio : VIDEO_RATIOS) {
+        FakeMediaProvider provider = new FakeMediaProvider(size, videoRatio);
+        CameraRollManager module = new CameraRollManager(new ReactApplicationContext(
+            new BenchmarkContext(targetContext, provider.attach(targetContext))));
+        try {
+          // Warm up, so that the timed runs don't include class loading, JIT compilation and the
+          // provider building its results.
+          call(scenario, module, size);
+
+          double[] latenciesMs = new double[ITERATIONS];
+          // The work runs on the executors, so allocations are counted for all threads.
+          Debug.startAllocCounting();
+          Debug.resetGlobalAllocCount();
+          long start = System.nanoTime();
+          for (int i = 0; i < ITERATIONS; i++) {
+            latenciesMs[i] = call(scenario, module, size);
+          }
+          double totalSeconds = (System.nanoTime() - start) / 1e9;
+          long allocations = Debug.getGlobalAllocCount();
+          Debug.stopAllocCounting();
+
+          Arrays.sort(latenciesMs);
+          long assets = (long) size * ITERATIONS;
+          double opsPerSecond = ITERATIONS / totalSeconds;
+          double assetsPerSecond = assets / totalSeconds;
+          double allocationsPerAsset = allocations / (double) assets;
+          double p50Ms = percentile(latenciesMs, 0.5);
+          double p99Ms = percentile(latenciesMs, 0.99);
+          String result = String.format(
+              "%s rows=%d videoRatio=%.2f ops/s=%.2f assets/s=%.0f allocs/asset=%.1f "
+                  + "p50=%.1fms p99=%.1fms",
+              name, size, videoRatio, opsPerSecond, assetsPerSecond, allocationsPerAsset,
+              p50Ms, p99Ms);
+          Log.i(TAG, result);
+
+          if (assetsPerSecond < minAssetsPerSecond
+              || allocationsPerAsset > maxAllocationsPerAsset
+              || p99Ms > maxP99MsPer1000Assets * Math.max(1, size / 1000.0)) {
+            failures.add(result);
+          }
+        } finally {
+          module.onCatalystInstanceDestroy();
+        }
+      }
+    }
+    assertTrue("Below thresholds: " + failures, failures.isEmpty());
+  }
+
+  /**
+   * @return how long the call took until its promise was resolved, in milliseconds
+   */
+  private static double call(Scenario scenario, CameraRollManager module, int size)
+      throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Object> error = new AtomicReference<>();
+    Promise promise = new PromiseImpl(
+        new Callback() {
+          @Override
+          public void invoke(Object... args) {
+            done.countDown();
+          }
+        },
+        new Callback() {
+          @Override
+          public void invoke(Object... args) {
+            error.set(args.length > 0 ? args[0] : "rejected");
+            done.countDown();
+          }
+        });
+    long start = System.nanoTime();
+    scenario.call(module, size, promise);
+    if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      fail("Timed out after " + TIMEOUT_SECONDS + " seconds");
+    }
+    double latencyMs = (System.nanoTime() - start) / 1e6;
+    if (error.get() != null) {
+      fail("Rejected: " + error.get());
+    }
+    return latencyMs;
+  }
+
+  private static double getThreshold(Bundle arguments, String key, double defaultValue) {
+    String value = arguments.getString(key);
+    return value != null ? Double.parseDouble(value) : defaultValue;
+  }
+
+  /**
+   * @param sorted the values, in ascending order
+   */
+  private static double percentile(double[] sorted, double percentile) {
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+}
@@ -0,0 +1,127 @@
+package com.dylanvann.cameraroll;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.app.Instrumentation;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.facebook.react.bridge.JSApplicationIllegalArgumentException;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link CancellableTask} registers request ids. Tasks are started on the main thread,
+ * like the bridge's native modules thread, with an executor that runs them there too, and are done
+ * once the main looper is idle.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CancellableTaskTest {
+
+  private static final String MODULE = "Test";
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  /**
+   * Fails without reporting anything, like a task with a bug, or one whose error was handled by
+   * {@code GuardedAsyncTask}.
+   */
+  private static class UnsettledTask extends CancellableTask {
+    int cancelled;
+
+    UnsettledTask(ReactContext context, String moduleName, String requestId) {
+      super(context, moduleName, requestId);
+    }
+
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      cancelled++;
+    }
+  }
+
+  private Instrumentation mInstrumentation;
+  private ReactContext mContext;
+
+  @Before
+  public void setUp() {
+    mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    mContext = new ReactApplicationContext(InstrumentationRegistry.getTargetContext());
+  }
+
+  @Test
+  public void duplicateInFlightIdIsRejected() {
+    final List<Runnable> queued = new ArrayList<>();
+    final Executor queue = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+    final UnsettledTask first = new UnsettledTask(mContext, MODULE, "duplicate");
+    final UnsettledTask second = new UnsettledTask(mContext, MODULE, "duplicate");
+    final UnsettledTask other = new UnsettledTask(mContext, "Other", "duplicate");
+    mInstrumentation.runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        first.execute(queue);
+        try {
+          second.execute(DIRECT);
+          fail("A second task with the same id was started");
+        } catch (JSApplicationIllegalArgumentException e) {
+          // Expected.
+        }
+        // Ids are scoped to their module.
+        other.execute(queue);
+      }
+    });
+    assertTrue(CancellableTask.cancel(MODULE, "duplicate"));
+    assertFalse(CancellableTask.cancel(MODULE, "duplicate"));
+    assertTrue(CancellableTask.cancel("Other", "duplicate"));
+    mInstrumentation.waitForIdleSync();
+    assertEquals(1, first.cancelled);
+    assertEquals(0, second.cancelled);
+    assertEquals(1, other.cancelled);
+  }
+
+  @Test
+  public void idIsReleasedWhenTaskEndsWithoutSettling() {
+    final UnsettledTask first = new UnsettledTask(mContext, MODULE, "reused");
+    mInstrumentation.runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        first.execute(DIRECT);
+      }
+    });
+    mInstrumentation.waitForIdleSync();
+
+    final UnsettledTask second = new UnsettledTask(mContext, MODULE, "reused");
+    mInstrumentation.runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        second.execute(DIRECT);
+      }
+    });
+    mInstrumentation.waitForIdleSync();
+    assertFalse(CancellableTask.cancel(MODULE, "reused"));
+  }
+}
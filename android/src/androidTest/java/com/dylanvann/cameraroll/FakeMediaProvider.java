@@ -0,0 +1,192 @@
+package com.dylanvann.cameraroll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Video;
+import android.test.mock.MockContentResolver;
+
+/**
+ * A media store backed by a synthetic library, newest first, for the queries that
+ * {@link CameraRollManager#getPhotos} and {@link CameraRollManager#getAlbums} make. It rejects
+ * the GROUP BY injection of the album query, like providers that don't forward the selection to
+ * SQLite, so albums are aggregated by scanning the bucket columns. Every video has a thumbnail, so
+ * that no thumbnail is ever queued for generation.
+ *
+ * Results are built once per distinct query and handed out again afterwards, so that timed runs
+ * measure the module rather than this provider.
+ */
+final class FakeMediaProvider extends ContentProvider {
+
+  private static final int ASSETS_PER_BUCKET = 200;
+  private static final Pattern LIMIT = Pattern.compile(" LIMIT (\\d+)$");
+
+  private final List<Map<String, Object>> mRows;
+  private final Map<String, List<Map<String, Object>>> mRowsByBucket = new HashMap<>();
+  private final Map<String, MatrixCursor> mResults = new HashMap<>();
+
+  /**
+   * @param size the number of assets in the library
+   * @param videoRatio the share of videos among them, spread evenly
+   */
+  FakeMediaProvider(int size, double videoRatio) {
+    mRows = new ArrayList<>(size);
+    long now = System.currentTimeMillis() / 1000;
+    int videoCount = 0;
+    for (int i = 0; i < size; i++) {
+      long id = size - i;
+      // e.g. every tenth asset for a ratio of 0.1.
+      boolean isVideo = (int) ((i + 1) * videoRatio) > videoCount;
+      if (isVideo) {
+        videoCount++;
+      }
+      String bucket = String.valueOf(i / ASSETS_PER_BUCKET);
+      Map<String, Object> row = new HashMap<>();
+      row.put(FileColumns._ID, id);
+      row.put(FileColumns.DATE_MODIFIED, now - i * 60);
+      row.put(FileColumns.MEDIA_TYPE,
+          isVideo ? FileColumns.MEDIA_TYPE_VIDEO : FileColumns.MEDIA_TYPE_IMAGE);
+      row.put(FileColumns.WIDTH, 4032);
+      row.put(FileColumns.HEIGHT, 3024);
+      row.put(MediaStore.MediaColumns.DISPLAY_NAME,
+          (isVideo ? "VID_" : "IMG_") + id + (isVideo ? ".mp4" : ".jpg"));
+      row.put(FileColumns.MIME_TYPE, isVideo ? "video/mp4" : "image/jpeg");
+      row.put(FileColumns.DATA, "/storage/emulated/0/DCIM/Camera/" + id);
+      row.put(Video.VideoColumns.DURATION, isVideo ? 15000 : null);
+      row.put(Video.Media.BUCKET_ID, bucket);
+      row.put(Video.Media.BUCKET_DISPLAY_NAME, "Album " + bucket);
+      mRows.add(row);
+      List<Map<String, Object>> bucketRows = mRowsByBucket.get(bucket);
+      if (bucketRows == null) {
+        bucketRows = new ArrayList<>();
+        mRowsByBucket.put(bucket, bucketRows);
+      }
+      bucketRows.add(row);
+    }
+  }
+
+  /**
+   * @return a resolver that sends media store queries to this provider
+   */
+  MockContentResolver attach(Context context) {
+    ProviderInfo info = new ProviderInfo();
+    info.authority = MediaStore.AUTHORITY;
+    attachInfo(context, info);
+    MockContentResolver resolver = new MockContentResolver(context);
+    resolver.addProvider(MediaStore.AUTHORITY, this);
+    return resolver;
+  }
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public synchronized Cursor query(
+      Uri uri,
+      String[] projection,
+      String selection,
+      String[] selectionArgs,
+      String sortOrder) {
+    if (selection != null && selection.contains("GROUP BY")) {
+      throw new IllegalArgumentException("GROUP BY is not supported");
+    }
+    String key = uri + "|" + Arrays.toString(projection) + "|" + selection + "|"
+        + Arrays.toString(selectionArgs) + "|" + sortOrder;
+    MatrixCursor result = mResults.get(key);
+    if (result == null) {
+      result = Video.Thumbnails.EXTERNAL_CONTENT_URI.equals(uri)
+          ? queryThumbnails(projection, selectionArgs)
+          : queryFiles(projection, selection, selectionArgs, sortOrder);
+      mResults.put(key, result);
+    }
+    result.moveToPosition(-1);
+    // Results are reused, the module must not close them.
+    return new CursorWrapper(result) {
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private MatrixCursor queryFiles(
+      String[] projection,
+      String selection,
+      String[] selectionArgs,
+      String sortOrder) {
+    List<Map<String, Object>> rows = mRows;
+    if (selection.contains(Video.Media.BUCKET_ID + " = ?")) {
+      rows = mRowsByBucket.get(selectionArgs[selectionArgs.length - 1]);
+      if (rows == null) {
+        rows = new ArrayList<>();
+      }
+    }
+    int limit = rows.size();
+    Matcher matcher = LIMIT.matcher(sortOrder != null ? sortOrder : "");
+    if (matcher.find()) {
+      limit = Math.min(limit, Integer.parseInt(matcher.group(1)));
+    }
+    MatrixCursor cursor = new MatrixCursor(projection, limit);
+    for (int i = 0; i < limit; i++) {
+      Map<String, Object> row = rows.get(i);
+      Object[] values = new Object[projection.length];
+      for (int column = 0; column < projection.length; column++) {
+        values[column] = row.get(projection[column]);
+      }
+      cursor.addRow(values);
+    }
+    return cursor;
+  }
+
+  private MatrixCursor queryThumbnails(String[] projection, String[] videoIds) {
+    MatrixCursor cursor = new MatrixCursor(projection, videoIds.length);
+    for (String videoId : videoIds) {
+      Object[] values = new Object[projection.length];
+      for (int column = 0; column < projection.length; column++) {
+        if (Video.Thumbnails.VIDEO_ID.equals(projection[column])) {
+          values[column] = Long.parseLong(videoId);
+        } else if (Video.Thumbnails.DATA.equals(projection[column])) {
+          values[column] = "/storage/emulated/0/DCIM/.thumbnails/" + videoId + ".jpg";
+        }
+      }
+      cursor.addRow(values);
+    }
+    return cursor;
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    return null;
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    throw new UnsupportedOperationException();
+  }
+}
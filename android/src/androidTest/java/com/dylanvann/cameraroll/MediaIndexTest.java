@@ -0,0 +1,150 @@
+package com.dylanvann.cameraroll;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Video;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs a {@link MediaIndex} with a media store that is an in-memory SQLite table, so that the
+ * selections of the index are evaluated like the real provider would.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaIndexTest {
+
+  private static final String DATABASE_NAME = "RNCameraRollMediaIndex.db";
+  private static final long ONE_YEAR = 365L * 24 * 60 * 60;
+
+  private static class SQLiteMediaProvider extends ContentProvider {
+    private final SQLiteDatabase mDb = SQLiteDatabase.create(null);
+
+    SQLiteMediaProvider() {
+      mDb.execSQL("CREATE TABLE files ("
+          + FileColumns._ID + " INTEGER PRIMARY KEY, "
+          + Video.Media.BUCKET_ID + " TEXT, "
+          + Video.Media.BUCKET_DISPLAY_NAME + " TEXT, "
+          + FileColumns.MIME_TYPE + " TEXT, "
+          + FileColumns.MEDIA_TYPE + " INTEGER, "
+          + FileColumns.WIDTH + " INTEGER, "
+          + FileColumns.HEIGHT + " INTEGER, "
+          + FileColumns.DATE_MODIFIED + " INTEGER, "
+          + Video.VideoColumns.DURATION + " INTEGER, "
+          + MediaStore.MediaColumns.DISPLAY_NAME + " TEXT)");
+    }
+
+    MockContentResolver attach(Context context) {
+      ProviderInfo info = new ProviderInfo();
+      info.authority = MediaStore.AUTHORITY;
+      attachInfo(context, info);
+      MockContentResolver resolver = new MockContentResolver(context);
+      resolver.addProvider(MediaStore.AUTHORITY, this);
+      return resolver;
+    }
+
+    void putPhoto(long id, long dateModified, int width) {
+      ContentValues values = new ContentValues();
+      values.put(FileColumns._ID, id);
+      values.put(Video.Media.BUCKET_ID, "1");
+      values.put(Video.Media.BUCKET_DISPLAY_NAME, "Camera");
+      values.put(FileColumns.MIME_TYPE, "image/jpeg");
+      values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_IMAGE);
+      values.put(FileColumns.WIDTH, width);
+      values.put(FileColumns.HEIGHT, 3024);
+      values.put(FileColumns.DATE_MODIFIED, dateModified);
+      values.put(MediaStore.MediaColumns.DISPLAY_NAME, "IMG_" + id + ".jpg");
+      mDb.insertWithOnConflict("files", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public boolean onCreate() {
+      return true;
+    }
+
+    @Override
+    public Cursor query(
+        Uri uri,
+        String[] projection,
+        String selection,
+        String[] selectionArgs,
+        String sortOrder) {
+      return mDb.query("files", projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+      return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private Context mContext;
+  private SQLiteMediaProvider mProvider;
+  private MockContentResolver mResolver;
+  private MediaIndex mIndex;
+
+  @Before
+  public void setUp() {
+    mContext = InstrumentationRegistry.getTargetContext();
+    mContext.deleteDatabase(DATABASE_NAME);
+    mProvider = new SQLiteMediaProvider();
+    mResolver = mProvider.attach(mContext);
+    mIndex = new MediaIndex(mContext);
+  }
+
+  @After
+  public void tearDown() {
+    mIndex.close();
+    mContext.deleteDatabase(DATABASE_NAME);
+  }
+
+  @Test
+  public void syncsEditsDespiteAssetDatedInTheFuture() {
+    long now = System.currentTimeMillis() / 1000;
+    mProvider.putPhoto(1, now + ONE_YEAR, 4032);
+    mProvider.putPhoto(2, now - 1000, 4032);
+    assertEquals(Arrays.asList(1L, 2L), mIndex.sync(mResolver).inserted);
+
+    // Edited in place: same _id, date_modified now.
+    mProvider.putPhoto(2, System.currentTimeMillis() / 1000, 2016);
+    MediaIndex.Changes changes = mIndex.sync(mResolver);
+    assertEquals(Collections.<Long>emptyList(), changes.inserted);
+    assertEquals(Collections.singletonList(2L), changes.updated);
+
+    // Rows that are read again without having changed aren't reported.
+    assertTrue(mIndex.sync(mResolver).isEmpty());
+  }
+}
@@ -0,0 +1,130 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
+
+/**
+ * Collects assets as one array per field instead of one map per asset, which saves marshalling
+ * the same keys over and over for large pages. Assets that don't have a field (e.g. the duration
+ * of a photo) have {@code null} in its column. Fields with few distinct values are dictionary
+ * encoded: their column holds indices into the matching array of {@code dictionaries}.
+ *
+ * The result has the form {@code {length, columns: {id: [...], ...}, dictionaries: {mimeType:
+ * [...], mediaType: [...]}}}.
+ */
+final class AssetColumns implements AssetRowMapper.Sink {
+
+  private static final Set<String> DICTIONARY_FIELDS = Collections.unmodifiableSet(
+      new HashSet<>(Arrays.asList(
+          AssetRowMapper.FIELD_MIME_TYPE,
+          AssetRowMapper.FIELD_MEDIA_TYPE)));
+
+  private static final class Column {
+    final WritableArray values = new WritableNativeArray();
+    int length;
+    final @Nullable Map<String, Integer> dictionary;
+
+    Column(boolean dictionaryEncoded) {
+      dictionary = dictionaryEncoded ? new LinkedHashMap<String, Integer>() : null;
+    }
+  }
+
+  // Keyed by field.
+  private final Map<String, Column> mColumns = new HashMap<>();
+  private int mLength;
+
+  @Override
+  public void startAsset() {
+    mLength++;
+  }
+
+  @Override
+  public void putString(String field, @Nullable String value) {
+    Column column = getColumn(field);
+    if (column.dictionary != null && value != null) {
+      Integer index = column.dictionary.get(value);
+      if (index == null) {
+        index = column.dictionary.size();
+        column.dictionary.put(value, index);
+      }
+      column.values.pushInt(index);
+    } else {
+      column.values.pushString(value);
+    }
+    column.length++;
+  }
+
+  @Override
+  public void putDouble(String field, double value) {
+    Column column = getColumn(field);
+    column.values.pushDouble(value);
+    column.length++;
+  }
+
+  @Override
+  public void putBoolean(String field, boolean value) {
+    Column column = getColumn(field);
+    column.values.pushBoolean(value);
+    column.length++;
+  }
+
+  @Override
+  public void endAsset() {
+  }
+
+  /**
+   * @return the column of {@code field}, padded with nulls up to the current asset
+   */
+  private Column getColumn(String field) {
+    Column column = mColumns.get(field);
+    if (column == null) {
+      column = new Column(DICTIONARY_FIELDS.contains(field));
+      mColumns.put(field, column);
+    }
+    padColumn(column, mLength - 1);
+    return column;
+  }
+
+  private static void padColumn(Column column, int length) {
+    for (; column.length < length; column.length++) {
+      column.values.pushNull();
+    }
+  }
+
+  /**
+   * Write the collected columns; this can only be done once.
+   */
+  WritableMap toMap() {
+    WritableMap columns = new WritableNativeMap();
+    WritableMap dictionaries = new WritableNativeMap();
+    for (Map.Entry<String, Column> entry : mColumns.entrySet()) {
+      Column column = entry.getValue();
+      padColumn(column, mLength);
+      columns.putArray(entry.getKey(), column.values);
+      if (column.dictionary != null) {
+        WritableArray values = new WritableNativeArray();
+        for (String value : column.dictionary.keySet()) {
+          values.pushString(value);
+        }
+        dictionaries.putArray(entry.getKey(), values);
+      }
+    }
+    WritableMap result = new WritableNativeMap();
+    result.putInt("length", mLength);
+    result.putMap("columns", columns);
+    result.putMap("dictionaries", dictionaries);
+    return result;
+  }
+}
@@ -0,0 +1,202 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Images;
+import android.text.TextUtils;
+
+import com.facebook.react.bridge.JSApplicationIllegalArgumentException;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * Which photos and videos to list and in which order, as given to
+ * {@link CameraRollManager#getPhotos} and the methods that take the same filters. All filters are
+ * translated into a parameterized selection, so they work against both the media store and the
+ * local media index.
+ */
+final class AssetFilter {
+
+  private static final String MEDIA_TYPE_PHOTO = "photo";
+  private static final String MEDIA_TYPE_VIDEO = "video";
+  private static final String MEDIA_TYPE_ALL = "all";
+
+  private static final String SORT_DIRECTION_ASCENDING = "asc";
+  private static final String SORT_DIRECTION_DESCENDING = "desc";
+
+  private static final String SELECTION_BEFORE = "(" + FileColumns.DATE_MODIFIED + " < ? OR ("
+          + FileColumns.DATE_MODIFIED + " = ? AND " + FileColumns._ID + " < ?))";
+  private static final String SELECTION_AFTER = "(" + FileColumns.DATE_MODIFIED + " > ? OR ("
+          + FileColumns.DATE_MODIFIED + " = ? AND " + FileColumns._ID + " > ?))";
+
+  // Match the keysets used by SELECTION_BEFORE / SELECTION_AFTER and PageCursor.
+  static final String SORT_ORDER_NEWEST_FIRST =
+          FileColumns.DATE_MODIFIED + " DESC, " + FileColumns._ID + " DESC";
+  private static final String SORT_ORDER_OLDEST_FIRST =
+          FileColumns.DATE_MODIFIED + " ASC, " + FileColumns._ID + " ASC";
+
+  private final @Nullable String mAlbumId;
+  private final @Nullable List<String> mMimeTypes;
+  private final int mMediaType;
+  private final long mFromDate;
+  private final long mToDate;
+  private final int mMinWidth;
+  private final int mMinHeight;
+  private final boolean mAscending;
+
+  private AssetFilter(
+      @Nullable String albumId,
+      @Nullable List<String> mimeTypes,
+      int mediaType,
+      long fromDate,
+      long toDate,
+      int minWidth,
+      int minHeight,
+      boolean ascending) {
+    mAlbumId = albumId;
+    mMimeTypes = mimeTypes;
+    mMediaType = mediaType;
+    mFromDate = fromDate;
+    mToDate = toDate;
+    mMinWidth = minWidth;
+    mMinHeight = minHeight;
+    mAscending = ascending;
+  }
+
+  /**
+   * @param params a map containing the following optional keys:
+   *        <ul>
+   *          <li>albumId: an album id, as returned by {@link CameraRollManager#getAlbums}</li>
+   *          <li>mimeTypes: restrict returned assets to these mime types (e.g. ['image/jpeg'])</li>
+   *          <li>mediaType: 'photo', 'video' or 'all' (the default)</li>
+   *          <li>
+   *            fromDate, toDate: only return assets modified at or after {@code fromDate} and
+   *            before {@code toDate}, in seconds since the epoch like {@code creationDate}
+   *          </li>
+   *          <li>minWidth, minHeight: only return assets that are at least this large, in pixels</li>
+   *          <li>sortDirection: 'desc' for newest first (the default) or 'asc'</li>
+   *        </ul>
+   */
+  static AssetFilter fromParams(ReadableMap params) {
+    String albumId = params.hasKey("albumId") ? params.getString("albumId") : null;
+    List<String> mimeTypes = null;
+    if (params.hasKey("mimeTypes")) {
+      ReadableArray mimeTypesArray = params.getArray("mimeTypes");
+      mimeTypes = new ArrayList<>(mimeTypesArray.size());
+      for (int i = 0; i < mimeTypesArray.size(); i++) {
+        mimeTypes.add(mimeTypesArray.getString(i));
+      }
+    }
+    int mediaType = FileColumns.MEDIA_TYPE_NONE;
+    if (params.hasKey("mediaType")) {
+      String mediaTypeName = params.getString("mediaType");
+      if (MEDIA_TYPE_PHOTO.equals(mediaTypeName)) {
+        mediaType = FileColumns.MEDIA_TYPE_IMAGE;
+      } else if (MEDIA_TYPE_VIDEO.equals(mediaTypeName)) {
+        mediaType = FileColumns.MEDIA_TYPE_VIDEO;
+      } else if (!MEDIA_TYPE_ALL.equals(mediaTypeName)) {
+        throw new JSApplicationIllegalArgumentException("Unknown mediaType: " + mediaTypeName);
+      }
+    }
+    long fromDate = params.hasKey("fromDate") ? (long) params.getDouble("fromDate") : -1;
+    long toDate = params.hasKey("toDate") ? (long) params.getDouble("toDate") : -1;
+    int minWidth = params.hasKey("minWidth") ? params.getInt("minWidth") : 0;
+    int minHeight = params.hasKey("minHeight") ? params.getInt("minHeight") : 0;
+    if ((minWidth > 0 || minHeight > 0) && !CameraRollManager.IS_JELLY_BEAN_OR_LATER) {
+      throw new JSApplicationIllegalArgumentException(
+          "minWidth and minHeight require Android 4.1 or later");
+    }
+    boolean ascending = false;
+    if (params.hasKey("sortDirection")) {
+      String sortDirection = params.getString("sortDirection");
+      if (SORT_DIRECTION_ASCENDING.equals(sortDirection)) {
+        ascending = true;
+      } else if (!SORT_DIRECTION_DESCENDING.equals(sortDirection)) {
+        throw new JSApplicationIllegalArgumentException("Unknown sortDirection: " + sortDirection);
+      }
+    }
+    return new AssetFilter(
+        albumId, mimeTypes, mediaType, fromDate, toDate, minWidth, minHeight, ascending);
+  }
+
+  @Nullable String getAlbumId() {
+    return mAlbumId;
+  }
+
+  boolean isAscending() {
+    return mAscending;
+  }
+
+  /**
+   * Build the selection for the assets that match this filter.
+   *
+   * @param after only select the assets that come after this cursor in the sort order
+   * @param selectionArgs receives the arguments of the selection
+   */
+  String getSelection(@Nullable PageCursor after, List<String> selectionArgs) {
+    StringBuilder selection = new StringBuilder(CameraRollManager.SELECTION_IS_MEDIA);
+    if (mMediaType != FileColumns.MEDIA_TYPE_NONE) {
+      selection.append(" AND " + FileColumns.MEDIA_TYPE + " = ?");
+      selectionArgs.add(String.valueOf(mMediaType));
+    }
+    if (after != null) {
+      selection.append(" AND " + (mAscending ? SELECTION_AFTER : SELECTION_BEFORE));
+      selectionArgs.add(String.valueOf(after.getDateModified()));
+      selectionArgs.add(String.valueOf(after.getDateModified()));
+      selectionArgs.add(String.valueOf(after.getId()));
+    }
+    if (!TextUtils.isEmpty(mAlbumId)) {
+      selection.append(" AND " + Images.Media.BUCKET_ID + " = ?");
+      selectionArgs.add(mAlbumId);
+    }
+    if (mMimeTypes != null && mMimeTypes.size() > 0) {
+      selection.append(" AND " + FileColumns.MIME_TYPE + " IN (");
+      for (String mimeType : mMimeTypes) {
+        selection.append("?,");
+        selectionArgs.add(mimeType);
+      }
+      selection.replace(selection.length() - 1, selection.length(), ")");
+    }
+    if (mFromDate >= 0) {
+      selection.append(" AND " + FileColumns.DATE_MODIFIED + " >= ?");
+      selectionArgs.add(String.valueOf(mFromDate));
+    }
+    if (mToDate >= 0) {
+      selection.append(" AND " + FileColumns.DATE_MODIFIED + " < ?");
+      selectionArgs.add(String.valueOf(mToDate));
+    }
+    if (mMinWidth > 0) {
+      selection.append(" AND " + FileColumns.WIDTH + " >= ?");
+      selectionArgs.add(String.valueOf(mMinWidth));
+    }
+    if (mMinHeight > 0) {
+      selection.append(" AND " + FileColumns.HEIGHT + " >= ?");
+      selectionArgs.add(String.valueOf(mMinHeight));
+    }
+    return selection.toString();
+  }
+
+  String getSortOrder() {
+    return mAscending ? SORT_ORDER_OLDEST_FIRST : SORT_ORDER_NEWEST_FIRST;
+  }
+
+  /**
+   * @return a string that is equal for equal filters, e.g. to use in cache keys
+   */
+  String getKey() {
+    return TextUtils.join("|", new Object[] {
+        mAlbumId,
+        mMimeTypes,
+        mMediaType,
+        mFromDate,
+        mToDate,
+        mMinWidth,
+        mMinHeight,
+        mAscending,
+    });
+  }
+}
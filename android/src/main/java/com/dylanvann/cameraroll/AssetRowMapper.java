@@ -0,0 +1,261 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Video;
+
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+
+/**
+ * Maps rows of a media store cursor to the asset maps that are returned to JS. Column indices are
+ * resolved once per cursor, and only the fields that were asked for are written, so callers that
+ * only need a few fields can also query a smaller projection (see {@link #getProjection}).
+ */
+final class AssetRowMapper {
+
+  static final String FIELD_ID = "id";
+  static final String FIELD_URI = "uri";
+  static final String FIELD_SOURCE = "source";
+  static final String FIELD_WIDTH = "width";
+  static final String FIELD_HEIGHT = "height";
+  static final String FIELD_FILE_NAME = "fileName";
+  static final String FIELD_MIME_TYPE = "mimeType";
+  static final String FIELD_MEDIA_TYPE = "mediaType";
+  static final String FIELD_CREATION_DATE = "creationDate";
+  static final String FIELD_DURATION = "duration";
+  static final String FIELD_THUMBNAIL_PENDING = "thumbnailPending";
+
+  static final Set<String> ALL_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+      FIELD_ID,
+      FIELD_URI,
+      FIELD_SOURCE,
+      FIELD_WIDTH,
+      FIELD_HEIGHT,
+      FIELD_FILE_NAME,
+      FIELD_MIME_TYPE,
+      FIELD_MEDIA_TYPE,
+      FIELD_CREATION_DATE,
+      FIELD_DURATION)));
+
+  /**
+   * Receives the fields of mapped assets, one asset at a time.
+   */
+  interface Sink {
+    void startAsset();
+
+    void putString(String field, @Nullable String value);
+
+    void putDouble(String field, double value);
+
+    void putBoolean(String field, boolean value);
+
+    void endAsset();
+  }
+
+  /**
+   * Pushes each asset to an array as a map, which is how assets are returned by default.
+   */
+  static final class Rows implements Sink {
+    private final WritableArray mAssets;
+    private @Nullable WritableMap mAsset;
+
+    Rows(WritableArray assets) {
+      mAssets = assets;
+    }
+
+    @Override
+    public void startAsset() {
+      mAsset = new WritableNativeMap();
+    }
+
+    @Override
+    public void putString(String field, @Nullable String value) {
+      mAsset.putString(field, value);
+    }
+
+    @Override
+    public void putDouble(String field, double value) {
+      mAsset.putDouble(field, value);
+    }
+
+    @Override
+    public void putBoolean(String field, boolean value) {
+      mAsset.putBoolean(field, value);
+    }
+
+    @Override
+    public void endAsset() {
+      mAssets.pushMap(mAsset);
+      mAsset = null;
+    }
+  }
+
+  private final Cursor mCursor;
+  private final int mIdIndex;
+  private final int mMediaTypeIndex;
+  private final int mDateModifiedIndex;
+  private final int mWidthIndex;
+  private final int mHeightIndex;
+  private final int mFileNameIndex;
+  private final int mMimeTypeIndex;
+  private final int mDurationIndex;
+  private final boolean mWriteId;
+  private final boolean mWriteUri;
+  private final boolean mWriteSource;
+  private final boolean mWriteMediaType;
+  private final boolean mWriteCreationDate;
+
+  /**
+   * @param fields the fields to write, {@code null} for all of them
+   */
+  AssetRowMapper(Cursor cursor, @Nullable Set<String> fields) {
+    if (fields == null) {
+      fields = ALL_FIELDS;
+    }
+    mCursor = cursor;
+    mIdIndex = cursor.getColumnIndex(FileColumns._ID);
+    mMediaTypeIndex = cursor.getColumnIndex(FileColumns.MEDIA_TYPE);
+    mDateModifiedIndex = cursor.getColumnIndex(FileColumns.DATE_MODIFIED);
+    mWidthIndex = columnIndex(cursor, fields, FIELD_WIDTH, FileColumns.WIDTH);
+    mHeightIndex = columnIndex(cursor, fields, FIELD_HEIGHT, FileColumns.HEIGHT);
+    mFileNameIndex =
+        columnIndex(cursor, fields, FIELD_FILE_NAME, MediaStore.MediaColumns.DISPLAY_NAME);
+    mMimeTypeIndex = columnIndex(cursor, fields, FIELD_MIME_TYPE, FileColumns.MIME_TYPE);
+    mDurationIndex = columnIndex(cursor, fields, FIELD_DURATION, Video.VideoColumns.DURATION);
+    mWriteId = fields.contains(FIELD_ID);
+    mWriteUri = fields.contains(FIELD_URI);
+    mWriteSource = fields.contains(FIELD_SOURCE);
+    mWriteMediaType = fields.contains(FIELD_MEDIA_TYPE);
+    mWriteCreationDate = fields.contains(FIELD_CREATION_DATE);
+  }
+
+  private static int columnIndex(Cursor cursor, Set<String> fields, String field, String column) {
+    return fields.contains(field) ? cursor.getColumnIndex(column) : -1;
+  }
+
+  /**
+   * The columns needed to map {@code fields}. {@code _id}, {@code date_modified} and
+   * {@code media_type} are always included since they are needed for the uri and for paging.
+   *
+   * @param fields the fields to write, {@code null} for all of them
+   */
+  static String[] getProjection(@Nullable Set<String> fields) {
+    if (fields == null) {
+      fields = ALL_FIELDS;
+    }
+    List<String> projection = new ArrayList<>();
+    projection.add(FileColumns._ID);
+    projection.add(FileColumns.DATE_MODIFIED);
+    projection.add(FileColumns.MEDIA_TYPE);
+    if (CameraRollManager.IS_JELLY_BEAN_OR_LATER && fields.contains(FIELD_WIDTH)) {
+      projection.add(FileColumns.WIDTH);
+    }
+    if (CameraRollManager.IS_JELLY_BEAN_OR_LATER && fields.contains(FIELD_HEIGHT)) {
+      projection.add(FileColumns.HEIGHT);
+    }
+    if (fields.contains(FIELD_FILE_NAME)) {
+      projection.add(MediaStore.MediaColumns.DISPLAY_NAME);
+    }
+    if (fields.contains(FIELD_MIME_TYPE)) {
+      projection.add(FileColumns.MIME_TYPE);
+    }
+    if (fields.contains(FIELD_DURATION)) {
+      projection.add(Video.VideoColumns.DURATION);
+    }
+    return projection.toArray(new String[projection.size()]);
+  }
+
+  /**
+   * Whether {@link #map} needs video thumbnails, i.e. whether the uri was asked for.
+   */
+  boolean needsThumbnails() {
+    return mWriteUri;
+  }
+
+  boolean isVideo() {
+    return mCursor.getInt(mMediaTypeIndex) == FileColumns.MEDIA_TYPE_VIDEO;
+  }
+
+  long getId() {
+    return mCursor.getLong(mIdIndex);
+  }
+
+  /**
+   * Write the asset at the current position of the cursor.
+   *
+   * @param videoThumbnails thumbnail file paths keyed by video id; a video without one is flagged
+   *        with {@code thumbnailPending}
+   */
+  void map(Map<Long, String> videoThumbnails, Sink asset) {
+    asset.startAsset();
+    boolean isVideo = isVideo();
+    String id = mCursor.getString(mIdIndex);
+    if (isVideo) {
+      if (mWriteSource) {
+        // Add the actual source of the video as a property.
+        Uri sourceUri = Uri.withAppendedPath(Video.Media.EXTERNAL_CONTENT_URI, id);
+        asset.putString(FIELD_SOURCE, sourceUri.toString());
+      }
+      if (mDurationIndex >= 0) {
+        asset.putString(FIELD_DURATION, mCursor.getString(mDurationIndex));
+      }
+      if (mWriteUri) {
+        // If there is no thumbnail yet then the media will be returned with no uri. One is being
+        // generated in the background and will be delivered with a CameraRollThumbnailReady event.
+        String thumbnailPath = videoThumbnails.get(mCursor.getLong(mIdIndex));
+        if (thumbnailPath != null) {
+          // Return a url with file:///storage for React Native to use.
+          asset.putString(FIELD_URI, "file://" + thumbnailPath);
+        } else {
+          asset.putBoolean(FIELD_THUMBNAIL_PENDING, true);
+        }
+      }
+    } else if (mWriteUri || mWriteSource) {
+      String photoUri = Uri.withAppendedPath(Images.Media.EXTERNAL_CONTENT_URI, id).toString();
+      if (mWriteUri) {
+        asset.putString(FIELD_URI, photoUri);
+      }
+      if (mWriteSource) {
+        asset.putString(FIELD_SOURCE, photoUri);
+      }
+    }
+
+    if (mWidthIndex >= 0) {
+      asset.putDouble(FIELD_WIDTH, mCursor.getInt(mWidthIndex));
+    }
+    if (mHeightIndex >= 0) {
+      asset.putDouble(FIELD_HEIGHT, mCursor.getInt(mHeightIndex));
+    }
+    if (mFileNameIndex >= 0) {
+      asset.putString(FIELD_FILE_NAME, mCursor.getString(mFileNameIndex));
+    }
+    if (mMimeTypeIndex >= 0) {
+      asset.putString(FIELD_MIME_TYPE, mCursor.getString(mMimeTypeIndex));
+    }
+    if (mWriteMediaType) {
+      asset.putString(FIELD_MEDIA_TYPE, isVideo ? "video" : "photo");
+    }
+    if (mWriteCreationDate) {
+      asset.putDouble(FIELD_CREATION_DATE, mCursor.getLong(mDateModifiedIndex));
+    }
+    if (mWriteId) {
+      asset.putString(FIELD_ID, id);
+    }
+    asset.endAsset();
+  }
+}
@@ -0,0 +1,92 @@
+package com.dylanvann.cameraroll;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+
+/**
+ * The executors that the modules in this package run their work on, one per kind of workload, so
+ * that e.g. a burst of crops can't hold up gallery queries.
+ */
+final class CameraRollExecutors {
+
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  /** Media store and media index queries. */
+  static final ThreadPoolExecutor QUERY = create("CameraRollQuery", 2);
+
+  /** Decoding and encoding of images, which is CPU and memory bound. */
+  static final ThreadPoolExecutor CODEC =
+      create("CameraRollCodec", Math.max(1, Math.min(2, CPU_COUNT - 1)));
+
+  /** Copying and reading files. */
+  static final ThreadPoolExecutor IO = create("CameraRollIO", 2);
+
+  private CameraRollExecutors() {
+  }
+
+  private static ThreadPoolExecutor create(final String name, int threadCount) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threadCount,
+        threadCount,
+        KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger(1);
+
+          @Override
+          public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+              @Override
+              public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+              }
+            }, name + " #" + mCount.getAndIncrement());
+          }
+        }) {
+      @Override
+      public void execute(final Runnable command) {
+        final long queuedAt = System.nanoTime();
+        super.execute(new Runnable() {
+          @Override
+          public void run() {
+            PerformanceStats.record(PerformanceStats.QUEUE_WAIT, queuedAt);
+            command.run();
+          }
+        });
+      }
+    };
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return the current load of each executor, for tuning
+   */
+  static WritableMap getStats() {
+    WritableMap stats = new WritableNativeMap();
+    stats.putMap("query", getStats(QUERY));
+    stats.putMap("codec", getStats(CODEC));
+    stats.putMap("io", getStats(IO));
+    return stats;
+  }
+
+  private static WritableMap getStats(ThreadPoolExecutor executor) {
+    WritableMap stats = new WritableNativeMap();
+    stats.putInt("threads", executor.getMaximumPoolSize());
+    stats.putInt("active", executor.getActiveCount());
+    stats.putInt("queued", executor.getQueue().size());
+    stats.putDouble("completed", executor.getCompletedTaskCount());
+    return stats;
+  }
+}
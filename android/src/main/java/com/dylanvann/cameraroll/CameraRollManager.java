@@ -15,29 +15,50 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Environment;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Files;
 import android.provider.MediaStore.Files.FileColumns;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Video;
 import android.text.TextUtils;
+import android.webkit.MimeTypeMap;
 
 import com.facebook.common.logging.FLog;
-import com.facebook.react.bridge.GuardedAsyncTask;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
@@ -53,527 +74,2369 @@ import com.facebook.react.bridge.WritableNativeArray;
 import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.common.ReactConstants;
 import com.facebook.react.module.annotations.ReactModule;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 /**
  * {@link NativeModule} that allows JS to interact with the photos on the device (i.e.
  * {@link MediaStore.Images}).
  */
-@ReactModule(name = "CameraRoll")
+@ReactModule(name = CameraRollManager.NAME)
 public class CameraRollManager extends ReactContextBaseJavaModule {
 
+  static final String NAME = "CameraRoll";
+
   private static final String ERROR_UNABLE_TO_LOAD = "E_UNABLE_TO_LOAD";
   private static final String ERROR_UNABLE_TO_LOAD_PERMISSION = "E_UNABLE_TO_LOAD_PERMISSION";
   private static final String ERROR_UNABLE_TO_SAVE = "E_UNABLE_TO_SAVE";
 
-  @Override
-  public String getName() {
-    return "CameraRoll";
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  public static final boolean IS_JELLY_BEAN_OR_LATER =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+  private static final String COLUMN_COUNT = "asset_count";
+  private static final String COLUMN_LATEST = "latest_date_modified";
+
+  private static final String SELECTION_BUCKET = Images.Media.BUCKET_ID + " = ?";
+
+  // Stay well below SQLITE_MAX_VARIABLE_NUMBER (999) when binding ids into an IN (...) clause.
+  static final int MAX_SELECTION_ARGS = 500;
+
+  static final String SELECTION_IS_MEDIA = "(" + FileColumns.MEDIA_TYPE + "="
+          + FileColumns.MEDIA_TYPE_IMAGE
+          + " OR "
+          + FileColumns.MEDIA_TYPE
+          + "="
+          + FileColumns.MEDIA_TYPE_VIDEO
+          + ")";
+
+  private static final String THUMBNAIL_READY_EVENT = "CameraRollThumbnailReady";
+  private static final String CHANGED_EVENT = "CameraRollChanged";
+  private static final String CHUNK_EVENT = "CameraRollChunk";
+  private static final String SAVE_MANY_PROGRESS_EVENT = "CameraRollSaveManyProgress";
+  private static final String SAVE_PROGRESS_EVENT = "CameraRollSaveProgress";
+
+  private static final int DEFAULT_CHUNK_SIZE = 50;
+
+  private static final long DEFAULT_COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+  // Progress events are throttled to about ten per second.
+  private static final long PROGRESS_INTERVAL_MS = 100;
+  private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+
+  private static final String SAVE_MODE_SCAN = "scan";
+  private static final String SAVE_MODE_INSERT = "insert";
+
+  private static final String FORMAT_ROWS = "rows";
+  private static final String FORMAT_COLUMNAR = "columnar";
+
+  // Media store changes come in bursts (e.g. one per row of a bulk insert), they are coalesced.
+  private static final long CHANGE_DEBOUNCE_MS = 300;
+
+  private final VideoThumbnailQueue mThumbnailQueue;
+  // Guarded by this.
+  private @Nullable MediaIndex mMediaIndex;
+  private @Nullable SavedMediaIndex mSavedMediaIndex;
+  private @Nullable ContentObserver mMediaObserver;
+  private @Nullable HandlerThread mMediaObserverThread;
+  private volatile boolean mObservingChanges;
+  private final PageCache mPageCache = new PageCache();
+
+  public CameraRollManager(ReactApplicationContext reactContext) {
+    super(reactContext);
+    mThumbnailQueue = new VideoThumbnailQueue(
+        reactContext.getContentResolver(),
+        new VideoThumbnailQueue.Listener() {
+          @Override
+          public void onThumbnailReady(long videoId, @Nullable String path) {
+            WritableMap event = new WritableNativeMap();
+            event.putString("id", String.valueOf(videoId));
+            if (path != null) {
+              event.putString("uri", "file://" + path);
+            }
+            emit(THUMBNAIL_READY_EVENT, event);
+          }
+        });
+  }
+
+  @Override
+  public void onCatalystInstanceDestroy() {
+    mThumbnailQueue.shutdown();
+    synchronized (this) {
+      mObservingChanges = false;
+      if (mMediaObserver != null) {
+        getReactApplicationContext().getContentResolver().unregisterContentObserver(mMediaObserver);
+        mMediaObserver = null;
+      }
+      if (mMediaObserverThread != null) {
+        mMediaObserverThread.quit();
+        mMediaObserverThread = null;
+      }
+      if (mMediaIndex != null) {
+        mMediaIndex.close();
+        mMediaIndex = null;
+      }
+      if (mSavedMediaIndex != null) {
+        mSavedMediaIndex.close();
+        mSavedMediaIndex = null;
+      }
+    }
+    mPageCache.clear();
+  }
+
+  /**
+   * Get the local media index, creating it on first use. It is invalidated whenever the media
+   * store notifies a change, so that the next query against it syncs first.
+   */
+  private synchronized MediaIndex getMediaIndex() {
+    if (mMediaIndex == null) {
+      mMediaIndex = new MediaIndex(getReactApplicationContext());
+      ensureMediaObserver();
+    }
+    return mMediaIndex;
+  }
+
+  private synchronized SavedMediaIndex getSavedMediaIndex() {
+    if (mSavedMediaIndex == null) {
+      mSavedMediaIndex = new SavedMediaIndex(getReactApplicationContext());
+    }
+    return mSavedMediaIndex;
+  }
+
+  private synchronized @Nullable MediaIndex peekMediaIndex() {
+    return mMediaIndex;
+  }
+
+  /**
+   * Start listening to media store changes, which invalidate the prefetched pages and the media
+   * index. While changes are being observed the index is also synced right away, once the burst of
+   * notifications is over.
+   */
+  private synchronized void ensureMediaObserver() {
+    if (mMediaObserver != null) {
+      return;
+    }
+    final ContentResolver resolver = getReactApplicationContext().getContentResolver();
+    mMediaObserverThread = new HandlerThread("CameraRollMediaObserver");
+    mMediaObserverThread.start();
+    final Handler handler = new Handler(mMediaObserverThread.getLooper());
+    final Runnable syncMediaIndex = new Runnable() {
+      @Override
+      public void run() {
+        MediaIndex mediaIndex = peekMediaIndex();
+        if (mediaIndex == null) {
+          return;
+        }
+        try {
+          mediaIndex.syncIfStale(resolver);
+        } catch (SQLiteException | SecurityException e) {
+          FLog.w(ReactConstants.TAG, "Could not sync the media index", e);
+        }
+      }
+    };
+    mMediaObserver = new ContentObserver(handler) {
+      @Override
+      public void onChange(boolean selfChange) {
+        mPageCache.clear();
+        MediaIndex mediaIndex = peekMediaIndex();
+        if (mediaIndex == null) {
+          return;
+        }
+        mediaIndex.invalidate();
+        if (mObservingChanges) {
+          handler.removeCallbacks(syncMediaIndex);
+          handler.postDelayed(syncMediaIndex, CHANGE_DEBOUNCE_MS);
+        }
+      }
+    };
+    resolver.registerContentObserver(Files.getContentUri("external"), true, mMediaObserver);
+  }
+
+  /**
+   * Start sending {@code CameraRollChanged} events with the photos and videos that were
+   * {@code inserted}, {@code updated} (both in the same format as {@link #getPhotos}) or
+   * {@code deleted} (ids only). Changes are computed by syncing the local media index, changes
+   * made before this is called are not reported.
+   */
+  @ReactMethod
+  public synchronized void startObservingChanges() {
+    if (mObservingChanges) {
+      return;
+    }
+    mObservingChanges = true;
+    final MediaIndex mediaIndex = getMediaIndex();
+    final ContentResolver resolver = getReactApplicationContext().getContentResolver();
+    final MediaIndex.ChangeListener changeListener = new MediaIndex.ChangeListener() {
+      @Override
+      public void onChanges(MediaIndex.Changes changes) {
+        WritableMap event = new WritableNativeMap();
+        event.putArray(
+            "inserted",
+            getAssetsById(resolver, mediaIndex, mThumbnailQueue, changes.inserted));
+        event.putArray(
+            "updated",
+            getAssetsById(resolver, mediaIndex, mThumbnailQueue, changes.updated));
+        WritableArray deleted = new WritableNativeArray();
+        for (Long id : changes.deleted) {
+          deleted.pushString(String.valueOf(id));
+        }
+        event.putArray("deleted", deleted);
+        emit(CHANGED_EVENT, event);
+      }
+    };
+    // Catch up with the media store before listening, so that only new changes are reported.
+    new Handler(mMediaObserverThread.getLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mediaIndex.sync(resolver);
+        } catch (SQLiteException | SecurityException e) {
+          FLog.w(ReactConstants.TAG, "Could not sync the media index", e);
+        }
+        synchronized (CameraRollManager.this) {
+          if (mObservingChanges) {
+            mediaIndex.setChangeListener(changeListener);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop sending {@code CameraRollChanged} events.
+   */
+  @ReactMethod
+  public synchronized void stopObservingChanges() {
+    mObservingChanges = false;
+    if (mMediaIndex != null) {
+      mMediaIndex.setChangeListener(null);
+    }
+  }
+
+  /**
+   * Get assets from the local media index, in the same format as {@link #getPhotos}. Ids that are
+   * not in the index are left out.
+   */
+  private static WritableArray getAssetsById(
+      ContentResolver resolver,
+      MediaIndex mediaIndex,
+      VideoThumbnailQueue thumbnailQueue,
+      List<Long> ids) {
+    WritableArray assets = new WritableNativeArray();
+    String[] projection = AssetRowMapper.getProjection(null);
+    for (int start = 0; start < ids.size(); start += MAX_SELECTION_ARGS) {
+      List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_SELECTION_ARGS));
+      Cursor cursor = mediaIndex.query(
+          projection,
+          selectionIn(FileColumns._ID, chunk.size()),
+          toSelectionArgs(chunk),
+          AssetFilter.SORT_ORDER_NEWEST_FIRST,
+          null);
+      try {
+        pushAssets(
+            resolver,
+            thumbnailQueue,
+            cursor,
+            Integer.MAX_VALUE,
+            null,
+            null,
+            new AssetRowMapper.Rows(assets));
+      } finally {
+        cursor.close();
+      }
+    }
+    return assets;
+  }
+
+  /**
+   * @return a {@code column IN (?,?,...)} selection with {@code count} arguments, which should not
+   *         be more than {@link #MAX_SELECTION_ARGS}
+   */
+  static String selectionIn(String column, int count) {
+    StringBuilder selection = new StringBuilder(column).append(" IN (");
+    for (int i = 0; i < count; i++) {
+      selection.append(i == 0 ? "?" : ",?");
+    }
+    return selection.append(")").toString();
+  }
+
+  static String[] toSelectionArgs(List<Long> ids) {
+    String[] selectionArgs = new String[ids.size()];
+    for (int i = 0; i < ids.size(); i++) {
+      selectionArgs[i] = String.valueOf(ids.get(i));
+    }
+    return selectionArgs;
+  }
+
+  /**
+   * Query the photos and videos in the local media index, syncing it first if needed, or in the
+   * media store if there is no index or it can't be synced.
+   *
+   * @throws OperationCanceledException if {@code cancellationSignal} is cancelled
+   */
+  private static @Nullable Cursor queryMedia(
+      ContentResolver resolver,
+      @Nullable MediaIndex mediaIndex,
+      String[] projection,
+      String selection,
+      @Nullable String[] selectionArgs,
+      @Nullable String sortOrder,
+      @Nullable CancellationSignal cancellationSignal) {
+    long queryStart = PerformanceStats.start(PerformanceStats.QUERY);
+    try {
+      if (mediaIndex != null) {
+        try {
+          mediaIndex.syncIfStale(resolver);
+          return mediaIndex.query(
+              projection, selection, selectionArgs, sortOrder, cancellationSignal);
+        } catch (SQLiteException e) {
+          FLog.w(ReactConstants.TAG, "Could not use the media index, querying the media store", e);
+        }
+      }
+      return resolver.query(
+          Files.getContentUri("external"),
+          projection,
+          selection,
+          selectionArgs,
+          sortOrder,
+          cancellationSignal);
+    } finally {
+      PerformanceStats.end(PerformanceStats.QUERY, queryStart);
+    }
+  }
+
+  private void emit(String eventName, WritableMap event) {
+    emit(getReactApplicationContext(), eventName, event);
+  }
+
+  private static void emit(ReactContext reactContext, String eventName, WritableMap event) {
+    reactContext
+        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+        .emit(eventName, event);
+  }
+
+  /**
+   * Cancel a call to {@link #getPhotos}, {@link #getAlbums} or {@link #saveToCameraRollWithOptions}
+   * that was made with the given {@code requestId}. Its promise is rejected with
+   * {@code E_CANCELLED}, unless it had already completed.
+   *
+   * @param promise to be resolved with whether there was anything to cancel
+   */
+  @ReactMethod
+  public void cancel(String requestId, Promise promise) {
+    promise.resolve(CancellableTask.cancel(NAME, requestId));
+  }
+
+  /**
+   * Get the number of threads, active tasks and queued tasks of the executors that the query, image
+   * decoding/encoding and file I/O work of this package runs on.
+   */
+  @ReactMethod
+  public void getExecutorStats(Promise promise) {
+    promise.resolve(CameraRollExecutors.getStats());
+  }
+
+  /**
+   * Get the timings of the phases of the work done by this package (queue wait, queries, cursor
+   * iteration, thumbnail lookups, decoding, encoding, file copies, media scans) since the app
+   * started or {@link #resetPerformanceStats} was called, the number of rows and bytes processed,
+   * and the current load of the executors.
+   *
+   * @param promise to be resolved with {@code {phases, counters, executors}}, see
+   *        {@link PerformanceStats#toMap} and {@link CameraRollExecutors#getStats}
+   */
+  @ReactMethod
+  public void getPerformanceStats(Promise promise) {
+    WritableMap stats = PerformanceStats.toMap();
+    stats.putMap("executors", CameraRollExecutors.getStats());
+    promise.resolve(stats);
+  }
+
+  @ReactMethod
+  public void resetPerformanceStats() {
+    PerformanceStats.reset();
+  }
+
+  /**
+   * Show the phases recorded by {@link #getPerformanceStats} as systrace sections (API 18+).
+   */
+  @ReactMethod
+  public void setPerformanceTracingEnabled(boolean enabled) {
+    PerformanceStats.setTracing(enabled);
+  }
+
+  /**
+   * Move videos whose thumbnails are still pending (see {@code thumbnailPending} in the result of
+   * {@link #getPhotos}) to the front of the generation queue, e.g. because they scrolled into view.
+   *
+   * @param ids the asset ids, most important first
+   */
+  @ReactMethod
+  public void prioritizeThumbnails(ReadableArray ids) {
+    mThumbnailQueue.prioritize(toIdList(ids));
+  }
+
+  /**
+   * Stop generating thumbnails for videos that are no longer needed, e.g. because they scrolled
+   * out of view. No {@code CameraRollThumbnailReady} event will be sent for them.
+   *
+   * @param ids the asset ids
+   */
+  @ReactMethod
+  public void cancelThumbnails(ReadableArray ids) {
+    mThumbnailQueue.cancel(toIdList(ids));
+  }
+
+  private static List<Long> toIdList(ReadableArray ids) {
+    List<Long> idList = new ArrayList<>(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      try {
+        idList.add(Long.parseLong(ids.getString(i)));
+      } catch (NumberFormatException e) {
+        throw new JSApplicationIllegalArgumentException("Invalid asset id: " + ids.getString(i));
+      }
+    }
+    return idList;
+  }
+
+  /**
+   * Save an image to the gallery (i.e. {@link MediaStore.Images}). This copies the original file
+   * from wherever it may be to the external storage pictures directory, so that it can be scanned
+   * by the MediaScanner.
+   *
+   * @param uri the file:// URI of the image to save
+   * @param promise to be resolved or rejected
+   */
+  @ReactMethod
+  public void saveToCameraRoll(String uri, String type, Promise promise) {
+    MediaType parsedType = type.equals("video") ? MediaType.VIDEO : MediaType.PHOTO;
+    new SaveToCameraRoll(getReactApplicationContext(), Uri.parse(uri), parsedType, null, promise)
+        .execute(CameraRollExecutors.IO);
+  }
+
+  /**
+   * Like {@link #saveToCameraRoll}, with the options in a map.
+   *
+   * @param options a map containing the following keys:
+   *        <ul>
+   *          <li>type (optional): 'photo' (the default) or 'video'</li>
+   *          <li>
+   *            requestId (optional): an id to pass to {@link #cancel}, which also deletes the
+   *            partial copy; when given, {@code CameraRollSaveProgress} events of
+   *            {@code {requestId, bytesWritten, totalBytes}} are sent while the file is copied
+   *          </li>
+   *          <li>
+   *            chunkSize (optional): how many bytes to copy between progress updates, 8 MiB by
+   *            default
+   *          </li>
+   *          <li>
+   *            dedupe (optional): if a file with the same content was saved before (with this
+   *            option) and is still there, resolve with its URI instead of saving another copy
+   *          </li>
+   *          <li>
+   *            mode (optional): 'scan' (the default) to copy the file and have the media scanner
+   *            add it, or 'insert' to add it to the media store directly, with metadata read
+   *            from the source, and write it through the media store; this resolves as soon as
+   *            the file is written
+   *          </li>
+   *        </ul>
+   */
+  @ReactMethod
+  public void saveToCameraRollWithOptions(String uri, ReadableMap options, Promise promise) {
+    String type = options.hasKey("type") ? options.getString("type") : "photo";
+    MediaType parsedType = type.equals("video") ? MediaType.VIDEO : MediaType.PHOTO;
+    SaveToCameraRoll task = new SaveToCameraRoll(
+        getReactApplicationContext(),
+        Uri.parse(uri),
+        parsedType,
+        getRequestId(options),
+        promise);
+    if (options.hasKey("chunkSize")) {
+      int chunkSize = options.getInt("chunkSize");
+      if (chunkSize <= 0) {
+        throw new JSApplicationIllegalArgumentException("chunkSize must be positive");
+      }
+      task.setChunkSize(chunkSize);
+    }
+    if (options.hasKey("dedupe") && options.getBoolean("dedupe")) {
+      task.setSavedMediaIndex(getSavedMediaIndex());
+    }
+    if (options.hasKey("mode")) {
+      String mode = options.getString("mode");
+      if (SAVE_MODE_INSERT.equals(mode)) {
+        task.setInsert(true);
+      } else if (!SAVE_MODE_SCAN.equals(mode)) {
+        throw new JSApplicationIllegalArgumentException("Unknown mode: " + mode);
+      }
+    }
+    task.execute(CameraRollExecutors.IO);
+  }
+
+  private static @Nullable String getRequestId(ReadableMap params) {
+    return params.hasKey("requestId") ? params.getString("requestId") : null;
+  }
+
+  private enum MediaType { PHOTO, VIDEO };
+  private interface CopyProgressListener {
+    void onProgress(long bytesWritten, long totalBytes);
+  }
+
+  private static class SaveToCameraRoll extends CancellableTask {
+
+    private final ReactContext mContext;
+    private final Uri mUri;
+    private final Promise mPromise;
+    private final MediaType mType;
+    private final @Nullable String mRequestId;
+    private long mChunkSize = DEFAULT_COPY_CHUNK_SIZE;
+    private @Nullable SavedMediaIndex mSavedMedia;
+    private boolean mInsert = false;
+
+    public SaveToCameraRoll(
+        ReactContext context,
+        Uri uri,
+        MediaType type,
+        @Nullable String requestId,
+        Promise promise) {
+      super(context, NAME, requestId);
+      mContext = context;
+      mUri = uri;
+      mPromise = promise;
+      mType = type;
+      mRequestId = requestId;
+    }
+
+    /**
+     * Copy at most {@code chunkSize} bytes at a time, checking for cancellation and reporting
+     * progress in between.
+     */
+    public void setChunkSize(long chunkSize) {
+      mChunkSize = chunkSize;
+    }
+
+    /**
+     * Return the copy saved earlier of a file with the same content, if there is one, instead of
+     * saving it again; and remember what is saved.
+     */
+    public void setSavedMediaIndex(@Nullable SavedMediaIndex savedMedia) {
+      mSavedMedia = savedMedia;
+    }
+
+    /**
+     * Insert the row of the file into the media store and write the file through it, instead of
+     * copying the file and waiting for the media scanner to add it.
+     */
+    public void setInsert(boolean insert) {
+      mInsert = insert;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Saving was cancelled");
+    }
+
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+      File source = new File(mUri.getPath());
+      File dest = null;
+      ContentResolver resolver = mContext.getContentResolver();
+      Uri insertedUri = null;
+      try {
+        final long size = source.length();
+        String sha256 = null;
+        if (mSavedMedia != null && hasSavedSize(size)) {
+          sha256 = SavedMediaIndex.hash(source, getCancellationSignal());
+          String savedUri = findSaved(size, sha256);
+          if (savedUri != null) {
+            if (settle()) {
+              mPromise.resolve(savedUri);
+            }
+            return;
+          }
+        }
+
+        File exportDir = getExportDirectory(mType, null);
+        if (exportDir == null) {
+          if (settle()) {
+            mPromise.reject(ERROR_UNABLE_TO_LOAD, "External media storage directory not available");
+          }
+          return;
+        }
+        dest = createDestination(exportDir, source.getName());
+        // Sources that weren't hashed up front are hashed while they are copied.
+        MessageDigest digest = mSavedMedia != null && sha256 == null
+            ? SavedMediaIndex.newDigest()
+            : null;
+        FileOutputStream output;
+        if (mInsert) {
+          insertedUri = resolver.insert(
+              mType == MediaType.PHOTO
+                  ? Images.Media.EXTERNAL_CONTENT_URI
+                  : Video.Media.EXTERNAL_CONTENT_URI,
+              getMediaValues(source, dest, mType));
+          if (insertedUri == null) {
+            throw new IOException("Could not add image to gallery");
+          }
+          output = openOutputStream(resolver, insertedUri);
+        } else {
+          output = new FileOutputStream(dest);
+        }
+        copyFile(
+            source, output, mChunkSize, getCancellationSignal(), getProgressListener(), digest);
+        // Don't leave a copy behind that nobody is waiting for.
+        getCancellationSignal().throwIfCanceled();
+        final String contentHash = digest != null ? SavedMediaIndex.toHex(digest.digest()) : sha256;
+
+        if (insertedUri != null) {
+          // The row is complete already, there is nothing left for the media scanner to do.
+          if (mSavedMedia != null) {
+            putSaved(size, contentHash, dest.getAbsolutePath(), insertedUri.toString());
+          }
+          if (settle()) {
+            mPromise.resolve(insertedUri.toString());
+          }
+          return;
+        }
+
+        final long scanStart = System.nanoTime();
+        settleLater();
+        MediaScannerConnection.scanFile(
+            mContext,
+            new String[]{dest.getAbsolutePath()},
+            null,
+            new MediaScannerConnection.OnScanCompletedListener() {
+              @Override
+              public void onScanCompleted(String path, Uri uri) {
+                PerformanceStats.record(PerformanceStats.MEDIA_SCAN, scanStart);
+                if (uri != null && mSavedMedia != null) {
+                  putSaved(size, contentHash, path, uri.toString());
+                }
+                if (!settle()) {
+                  return;
+                }
+                if (uri != null) {
+                  mPromise.resolve(uri.toString());
+                } else {
+                  mPromise.reject(ERROR_UNABLE_TO_SAVE, "Could not add image to gallery");
+                }
+              }
+            });
+      } catch (OperationCanceledException e) {
+        discard(resolver, dest, insertedUri);
+      } catch (IOException e) {
+        discard(resolver, dest, insertedUri);
+        if (settle()) {
+          mPromise.reject(e);
+        }
+      } catch (RuntimeException e) {
+        // e.g. a SecurityException or IllegalArgumentException from the media store, which would
+        // otherwise leave the copy behind and the promise unsettled.
+        discard(resolver, dest, insertedUri);
+        if (settle()) {
+          mPromise.reject(ERROR_UNABLE_TO_SAVE, "Could not save to gallery", e);
+        }
+      }
+    }
+
+    /**
+     * Remove a partial copy, and its media store row if it was inserted.
+     */
+    private void discard(ContentResolver resolver, @Nullable File dest, @Nullable Uri insertedUri) {
+      if (insertedUri != null) {
+        try {
+          resolver.delete(insertedUri, null, null);
+        } catch (RuntimeException e) {
+          FLog.w(ReactConstants.TAG, "Could not remove " + insertedUri + " from the gallery", e);
+        }
+      }
+      if (dest != null) {
+        dest.delete();
+      }
+    }
+
+    // The saved media index is an optimization, saving goes on without it if it fails.
+
+    private boolean hasSavedSize(long size) {
+      try {
+        return mSavedMedia.hasSize(size);
+      } catch (SQLiteException e) {
+        FLog.w(ReactConstants.TAG, "Could not read the saved media index", e);
+        return false;
+      }
+    }
+
+    private @Nullable String findSaved(long size, String sha256) {
+      try {
+        return mSavedMedia.find(size, sha256);
+      } catch (SQLiteException e) {
+        FLog.w(ReactConstants.TAG, "Could not read the saved media index", e);
+        return null;
+      }
+    }
+
+    private void putSaved(long size, String sha256, String path, String uri) {
+      try {
+        mSavedMedia.put(size, sha256, path, uri);
+      } catch (SQLiteException e) {
+        FLog.w(ReactConstants.TAG, "Could not update the saved media index", e);
+      }
+    }
+
+    /**
+     * @return a listener that sends {@code CameraRollSaveProgress} events, at most every
+     *         {@link #PROGRESS_INTERVAL_MS} and once the copy is complete, or {@code null} if
+     *         there is no request id to send them with
+     */
+    private @Nullable CopyProgressListener getProgressListener() {
+      if (mRequestId == null) {
+        return null;
+      }
+      return new CopyProgressListener() {
+        private long mLastEventAt;
+
+        @Override
+        public void onProgress(long bytesWritten, long totalBytes) {
+          long now = SystemClock.uptimeMillis();
+          if (bytesWritten < totalBytes && now - mLastEventAt < PROGRESS_INTERVAL_MS) {
+            return;
+          }
+          mLastEventAt = now;
+          WritableMap event = new WritableNativeMap();
+          event.putString("requestId", mRequestId);
+          event.putDouble("bytesWritten", bytesWritten);
+          event.putDouble("totalBytes", totalBytes);
+          emit(mContext, SAVE_PROGRESS_EVENT, event);
+        }
+      };
+    }
+  }
+
+  /**
+   * @param album the name of a subdirectory to save to, which becomes an album of its own, or
+   *        {@code null} to save to the pictures or movies directory itself
+   * @return the directory to save media of the given type to, or {@code null} if external storage
+   *         is not available
+   */
+  private static @Nullable File getExportDirectory(MediaType type, @Nullable String album) {
+    File exportDir = (type == MediaType.PHOTO)
+      ? Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
+      : Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES);
+    if (album != null) {
+      exportDir = new File(exportDir, album);
+    }
+    exportDir.mkdirs();
+    return exportDir.isDirectory() ? exportDir : null;
+  }
+
+  /**
+   * Create an empty file called {@code fullSourceName} in {@code exportDir}, or
+   * {@code name_0.ext}, {@code name_1.ext}, ... if that is taken.
+   */
+  private static File createDestination(File exportDir, String fullSourceName) throws IOException {
+    File dest = new File(exportDir, fullSourceName);
+    int n = 0;
+    String sourceName, sourceExt;
+    if (fullSourceName.indexOf('.') >= 0) {
+      sourceName = fullSourceName.substring(0, fullSourceName.lastIndexOf('.'));
+      sourceExt = fullSourceName.substring(fullSourceName.lastIndexOf('.'));
+    } else {
+      sourceName = fullSourceName;
+      sourceExt = "";
+    }
+    while (!dest.createNewFile()) {
+      dest = new File(exportDir, sourceName + "_" + (n++) + sourceExt);
+    }
+    return dest;
+  }
+
+  /**
+   * Copy {@code source} to {@code outputStream}, {@code chunkSize} bytes at a time, and close
+   * {@code outputStream}.
+   *
+   * @param digest if given, the content is copied through a buffer and added to this digest,
+   *        instead of being transferred by the channels directly
+   * @throws IOException if the copy fails or ends early, e.g. because the disk is full
+   * @throws OperationCanceledException if {@code cancellationSignal} is cancelled meanwhile
+   */
+  private static void copyFile(
+      File source,
+      FileOutputStream outputStream,
+      long chunkSize,
+      @Nullable CancellationSignal cancellationSignal,
+      @Nullable CopyProgressListener progressListener,
+      @Nullable MessageDigest digest) throws IOException {
+    FileChannel input = null, output = null;
+    long copyStart = PerformanceStats.start(PerformanceStats.FILE_COPY);
+    long position = 0;
+    try {
+      output = outputStream.getChannel();
+      input = new FileInputStream(source).getChannel();
+      long size = input.size();
+      ByteBuffer buffer = digest != null ? ByteBuffer.allocate(DIGEST_BUFFER_SIZE) : null;
+      while (position < size) {
+        if (cancellationSignal != null) {
+          cancellationSignal.throwIfCanceled();
+        }
+        long count = Math.min(chunkSize, size - position);
+        long copied = digest != null
+            ? copyAndDigest(input, output, count, buffer, digest)
+            : output.transferFrom(input, position, count);
+        if (copied <= 0) {
+          throw new IOException(
+              "Could not copy " + source + ", stopped after " + position + " of " + size + " bytes");
+        }
+        position += copied;
+        if (progressListener != null) {
+          progressListener.onProgress(position, size);
+        }
+      }
+      input.close();
+      output.close();
+    } finally {
+      PerformanceStats.count(PerformanceStats.BYTES, position);
+      PerformanceStats.end(PerformanceStats.FILE_COPY, copyStart);
+      if (input != null && input.isOpen()) {
+        try {
+          input.close();
+        } catch (IOException e) {
+          FLog.e(ReactConstants.TAG, "Could not close input channel", e);
+        }
+      }
+      if (output != null && output.isOpen()) {
+        try {
+          output.close();
+        } catch (IOException e) {
+          FLog.e(ReactConstants.TAG, "Could not close output channel", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Open a media store row for writing, the way {@link ContentResolver#openOutputStream} does, but
+   * as a {@link FileOutputStream} so that it can be copied to through a channel.
+   */
+  private static FileOutputStream openOutputStream(ContentResolver resolver, Uri uri)
+      throws IOException {
+    ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "w");
+    if (descriptor == null) {
+      throw new IOException("Could not open " + uri);
+    }
+    return new ParcelFileDescriptor.AutoCloseOutputStream(descriptor);
+  }
+
+  /**
+   * Get the media store row for saving {@code source} as {@code dest}, with the metadata that the
+   * media scanner would otherwise extract: the mime type, dimensions, orientation and duration.
+   * The provider derives the bucket from the path.
+   */
+  private static ContentValues getMediaValues(File source, File dest, MediaType type) {
+    long now = System.currentTimeMillis();
+    String name = dest.getName();
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.MediaColumns.DATA, dest.getAbsolutePath());
+    values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+    values.put(
+        MediaStore.MediaColumns.TITLE,
+        name.indexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name);
+    values.put(MediaStore.MediaColumns.SIZE, source.length());
+    values.put(MediaStore.MediaColumns.DATE_ADDED, now / 1000);
+    values.put(MediaStore.MediaColumns.DATE_MODIFIED, now / 1000);
+
+    String mimeType = null;
+    if (type == MediaType.PHOTO) {
+      values.put(Images.Media.DATE_TAKEN, now);
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(source.getPath(), options);
+      mimeType = options.outMimeType;
+      if (IS_JELLY_BEAN_OR_LATER && options.outWidth > 0 && options.outHeight > 0) {
+        values.put(MediaStore.MediaColumns.WIDTH, options.outWidth);
+        values.put(MediaStore.MediaColumns.HEIGHT, options.outHeight);
+      }
+      if ("image/jpeg".equals(mimeType)) {
+        values.put(Images.Media.ORIENTATION, getExifRotation(source));
+      }
+    } else {
+      values.put(Video.Media.DATE_TAKEN, now);
+      MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+      try {
+        retriever.setDataSource(source.getPath());
+        mimeType = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE);
+        putLong(
+            values,
+            Video.Media.DURATION,
+            retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+        if (IS_JELLY_BEAN_OR_LATER) {
+          putLong(
+              values,
+              MediaStore.MediaColumns.WIDTH,
+              retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+          putLong(
+              values,
+              MediaStore.MediaColumns.HEIGHT,
+              retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        }
+      } catch (RuntimeException e) {
+        FLog.w(ReactConstants.TAG, "Could not read the metadata of " + source, e);
+      } finally {
+        retriever.release();
+      }
+    }
+    if (mimeType == null) {
+      mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+          MimeTypeMap.getFileExtensionFromUrl(Uri.fromFile(source).toString()));
+    }
+    if (mimeType != null) {
+      values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+    }
+    return values;
+  }
+
+  private static void putLong(ContentValues values, String key, @Nullable String value) {
+    if (value == null) {
+      return;
+    }
+    try {
+      values.put(key, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      // Leave it to the media store's default.
+    }
+  }
+
+  /**
+   * @return the clockwise rotation in degrees from the EXIF orientation of a JPEG, 0 if unknown
+   */
+  static int getExifRotation(File jpeg) {
+    try {
+      int orientation = new ExifInterface(jpeg.getPath()).getAttributeInt(
+          ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+      switch (orientation) {
+        case ExifInterface.ORIENTATION_ROTATE_90:
+          return 90;
+        case ExifInterface.ORIENTATION_ROTATE_180:
+          return 180;
+        case ExifInterface.ORIENTATION_ROTATE_270:
+          return 270;
+        default:
+          return 0;
+      }
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Copy up to {@code count} bytes from the current position of {@code input} to {@code output},
+   * adding them to {@code digest}.
+   *
+   * @return the number of bytes copied, less than {@code count} only at the end of {@code input}
+   */
+  private static long copyAndDigest(
+      FileChannel input,
+      FileChannel output,
+      long count,
+      ByteBuffer buffer,
+      MessageDigest digest) throws IOException {
+    long copied = 0;
+    while (copied < count) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+      int read = input.read(buffer);
+      if (read <= 0) {
+        break;
+      }
+      digest.update(buffer.array(), 0, read);
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        output.write(buffer);
+      }
+      copied += read;
+    }
+    return copied;
+  }
+
+  /**
+   * Save several photos and videos to the gallery at once. The files are copied on the I/O
+   * executor, a few at a time, and the copies are then handed to the media scanner in a single
+   * pass. A {@code CameraRollSaveManyProgress} event of {@code {requestId, index, completed, total,
+   * error}} is sent as each copy finishes, {@code error} being absent if it succeeded.
+   *
+   * @param items an array of maps containing the following keys:
+   *        <ul>
+   *          <li>uri (mandatory): the file:// URI of the photo or video to save</li>
+   *          <li>type (optional): 'photo' (the default) or 'video'</li>
+   *          <li>
+   *            album (optional): the name of the album to save to, which is created in the pictures
+   *            or movies directory if needed
+   *          </li>
+   *        </ul>
+   * @param options a map containing the following keys:
+   *        <ul>
+   *          <li>requestId (optional): included in the events, can be passed to {@link #cancel}</li>
+   *        </ul>
+   * @param promise to be resolved with an array of {@code {uri}} or {@code {error}}, one per item
+   *        and in the same order
+   */
+  @ReactMethod
+  public void saveManyToCameraRoll(ReadableArray items, ReadableMap options, Promise promise) {
+    List<SaveItem> saveItems = new ArrayList<>(items.size());
+    for (int i = 0; i < items.size(); i++) {
+      ReadableMap item = items.getMap(i);
+      String type = item.hasKey("type") ? item.getString("type") : "photo";
+      String album = item.hasKey("album") ? item.getString("album") : null;
+      if (album != null
+          && (album.isEmpty() || album.startsWith(".") || album.contains(File.separator))) {
+        throw new JSApplicationIllegalArgumentException("Invalid album: " + album);
+      }
+      String uri = item.hasKey("uri") ? item.getString("uri") : null;
+      Uri parsedUri = uri != null ? Uri.parse(uri) : null;
+      if (parsedUri == null
+          || !ContentResolver.SCHEME_FILE.equals(parsedUri.getScheme())
+          || TextUtils.isEmpty(parsedUri.getPath())) {
+        throw new JSApplicationIllegalArgumentException("Invalid file URI: " + uri);
+      }
+      saveItems.add(new SaveItem(
+          parsedUri,
+          type.equals("video") ? MediaType.VIDEO : MediaType.PHOTO,
+          album));
+    }
+    new SaveManyToCameraRoll(
+            getReactApplicationContext(),
+            saveItems,
+            getRequestId(options),
+            promise)
+            .execute(CameraRollExecutors.IO);
+  }
+
+  private static class SaveItem {
+    final Uri uri;
+    final MediaType type;
+    final @Nullable String album;
+    // Set by the copy, then by the media scanner.
+    @Nullable File dest;
+    @Nullable String savedUri;
+    @Nullable String error;
+
+    SaveItem(Uri uri, MediaType type, @Nullable String album) {
+      this.uri = uri;
+      this.type = type;
+      this.album = album;
+    }
+  }
+
+  private static class SaveManyToCameraRoll extends CancellableTask {
+
+    private final ReactContext mContext;
+    private final List<SaveItem> mItems;
+    private final @Nullable String mRequestId;
+    private final Promise mPromise;
+    // Publishes the results of the copies to whoever finishes the last one.
+    private final AtomicInteger mCompleted = new AtomicInteger();
+
+    public SaveManyToCameraRoll(
+        ReactContext context,
+        List<SaveItem> items,
+        @Nullable String requestId,
+        Promise promise) {
+      super(context, NAME, requestId);
+      mContext = context;
+      mItems = items;
+      mRequestId = requestId;
+      mPromise = promise;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Saving was cancelled");
+    }
+
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+      if (mItems.isEmpty()) {
+        resolveResults();
+        return;
+      }
+      settleLater();
+      // The I/O executor bounds how many copies run at once.
+      for (int i = 0; i < mItems.size(); i++) {
+        final int index = i;
+        CameraRollExecutors.IO.execute(new Runnable() {
+          @Override
+          public void run() {
+            copy(index);
+          }
+        });
+      }
+    }
+
+    private void copy(int index) {
+      SaveItem item = mItems.get(index);
+      boolean cancelled = getCancellationSignal().isCanceled();
+      if (!cancelled) {
+        try {
+          File exportDir = getExportDirectory(item.type, item.album);
+          if (exportDir == null) {
+            item.error = "External media storage directory not available";
+          } else {
+            File source = new File(item.uri.getPath());
+            item.dest = createDestination(exportDir, source.getName());
+            copyFile(
+                source,
+                new FileOutputStream(item.dest),
+                DEFAULT_COPY_CHUNK_SIZE,
+                getCancellationSignal(),
+                null,
+                null);
+          }
+        } catch (OperationCanceledException e) {
+          cancelled = true;
+          if (item.dest != null) {
+            item.dest.delete();
+            item.dest = null;
+          }
+        } catch (IOException | RuntimeException e) {
+          // Anything else, e.g. a SecurityException, fails this item only: the count below has to
+          // reach the total for the task to resolve.
+          item.error = e.getMessage() != null ? e.getMessage() : e.toString();
+          if (item.dest != null) {
+            item.dest.delete();
+            item.dest = null;
+          }
+        }
+      }
+      int completed = mCompleted.incrementAndGet();
+      if (!cancelled) {
+        WritableMap event = new WritableNativeMap();
+        event.putString("requestId", mRequestId);
+        event.putInt("index", index);
+        event.putInt("completed", completed);
+        event.putInt("total", mItems.size());
+        if (item.error != null) {
+          event.putString("error", item.error);
+        }
+        emit(mContext, SAVE_MANY_PROGRESS_EVENT, event);
+      }
+      if (completed == mItems.size()) {
+        scan();
+      }
+    }
+
+    /**
+     * Hand all the copies to the media scanner at once, and resolve once it is done with them.
+     */
+    private void scan() {
+      final Map<String, SaveItem> itemsByPath = new HashMap<>();
+      for (SaveItem item : mItems) {
+        if (item.dest != null) {
+          itemsByPath.put(item.dest.getAbsolutePath(), item);
+        }
+      }
+      if (getCancellationSignal().isCanceled()) {
+        // Don't leave copies behind that nobody is waiting for.
+        for (SaveItem item : itemsByPath.values()) {
+          item.dest.delete();
+        }
+        // The task may have been cancelled after it was done queueing, report it if so.
+        settle();
+        return;
+      }
+      if (itemsByPath.isEmpty()) {
+        resolveResults();
+        return;
+      }
+      final AtomicInteger remaining = new AtomicInteger(itemsByPath.size());
+      final long scanStart = System.nanoTime();
+      MediaScannerConnection.scanFile(
+          mContext,
+          itemsByPath.keySet().toArray(new String[itemsByPath.size()]),
+          null,
+          new MediaScannerConnection.OnScanCompletedListener() {
+            @Override
+            public void onScanCompleted(String path, Uri uri) {
+              SaveItem item = itemsByPath.get(path);
+              if (item != null) {
+                if (uri != null) {
+                  item.savedUri = uri.toString();
+                } else {
+                  item.error = "Could not add image to gallery";
+                }
+              }
+              if (remaining.decrementAndGet() == 0) {
+                PerformanceStats.record(PerformanceStats.MEDIA_SCAN, scanStart);
+                resolveResults();
+              }
+            }
+          });
+    }
+
+    private void resolveResults() {
+      if (!settle()) {
+        return;
+      }
+      WritableArray results = new WritableNativeArray();
+      for (SaveItem item : mItems) {
+        WritableMap result = new WritableNativeMap();
+        if (item.savedUri != null) {
+          result.putString("uri", item.savedUri);
+        } else {
+          result.putString("error", item.error != null ? item.error : "Could not save");
+        }
+        results.pushMap(result);
+      }
+      mPromise.resolve(results);
+    }
+  }
+
+  /**
+   * Get the albums (i.e. media store buckets) that contain photos or videos, most recently
+   * modified first, preceded by an album with id -1 that contains everything.
+   *
+   * @param params a map containing the following keys:
+   *        <ul>
+   *          <li>previewCount (optional): the number of preview assets per album, 1 by default</li>
+   *          <li>
+   *            useIndex (optional): answer from the local media index instead of the media store
+   *          </li>
+   *          <li>requestId (optional): an id to pass to {@link #cancel}</li>
+   *        </ul>
+   * @param promise the Promise to be resolved with {@code {albums: [...]}}
+   */
+  @ReactMethod
+  public void getAlbums(final ReadableMap params, final Promise promise) {
+    int previewCount = params.hasKey("previewCount") ? params.getInt("previewCount") : 1;
+    if (previewCount < 0) {
+      throw new JSApplicationIllegalArgumentException("previewCount must not be negative");
+    }
+    boolean useIndex = params.hasKey("useIndex") && params.getBoolean("useIndex");
+    new GetAlbumsTask(
+            getReactApplicationContext(),
+            previewCount,
+            useIndex ? getMediaIndex() : null,
+            mThumbnailQueue,
+            getRequestId(params),
+            promise)
+            .execute(CameraRollExecutors.QUERY);
+  }
+
+  private static class Bucket {
+    final String id;
+    final String name;
+    int count;
+
+    Bucket(String id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  private static class GetAlbumsTask extends CancellableTask {
+    private final Context mContext;
+    private final int mPreviewCount;
+    private final @Nullable MediaIndex mMediaIndex;
+    private final VideoThumbnailQueue mThumbnailQueue;
+    private final Promise mPromise;
+
+    private GetAlbumsTask(
+            ReactContext context,
+            int previewCount,
+            @Nullable MediaIndex mediaIndex,
+            VideoThumbnailQueue thumbnailQueue,
+            @Nullable String requestId,
+            Promise promise) {
+      super(context, NAME, requestId);
+      mContext = context;
+      mPreviewCount = previewCount;
+      mMediaIndex = mediaIndex;
+      mThumbnailQueue = thumbnailQueue;
+      mPromise = promise;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Getting albums was cancelled");
+    }
+
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+      WritableMap response = new WritableNativeMap();
+      ContentResolver resolver = mContext.getContentResolver();
+      CancellationSignal cancellationSignal = getCancellationSignal();
+      try {
+        List<Bucket> buckets = null;
+        if (mMediaIndex != null) {
+          try {
+            mMediaIndex.syncIfStale(resolver);
+            buckets = queryBuckets(mMediaIndex, cancellationSignal);
+          } catch (SQLiteException e) {
+            FLog.w(ReactConstants.TAG, "Could not use the media index, querying the media store", e);
+          }
+        }
+        if (buckets == null) {
+          buckets = queryBuckets(resolver, cancellationSignal);
+        }
+        if (buckets == null) {
+          if (settle()) {
+            mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get photos");
+          }
+          return;
+        }
+        putAlbums(
+            resolver,
+            mMediaIndex,
+            mThumbnailQueue,
+            buckets,
+            mPreviewCount,
+            cancellationSignal,
+            response);
+        if (settle()) {
+          mPromise.resolve(response);
+        }
+      } catch (OperationCanceledException e) {
+        // Rejected by onRequestCancelled.
+      } catch (SecurityException e) {
+        if (settle()) {
+          mPromise.reject(
+                  ERROR_UNABLE_TO_LOAD_PERMISSION,
+                  "Could not get photos: need READ_EXTERNAL_STORAGE permission",
+                  e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Count the photos and videos in each bucket, most recently modified bucket first. This lets
+   * SQLite do the aggregation; the media store has no API for GROUP BY, but it puts the selection in
+   * parentheses after WHERE, so it can be closed and followed by a GROUP BY clause. Providers that
+   * reject this get a scan of the bucket columns instead.
+   *
+   * @return the buckets, or {@code null} if the media store could not be queried
+   */
+  private static @Nullable List<Bucket> queryBuckets(
+      ContentResolver resolver,
+      CancellationSignal cancellationSignal) {
+    Uri filesContentUri = Files.getContentUri("external");
+    Cursor bucketsCursor;
+    boolean grouped = true;
+    long queryStart = PerformanceStats.start(PerformanceStats.QUERY);
+    try {
+      bucketsCursor = resolver.query(
+              filesContentUri,
+              new String[] {
+                      Video.Media.BUCKET_ID,
+                      Video.Media.BUCKET_DISPLAY_NAME,
+                      "COUNT(*) AS " + COLUMN_COUNT,
+                      "MAX(" + FileColumns.DATE_MODIFIED + ") AS " + COLUMN_LATEST,
+              },
+              SELECTION_IS_MEDIA + ") GROUP BY (" + Video.Media.BUCKET_ID,
+              null,
+              COLUMN_LATEST + " DESC",
+              cancellationSignal);
+    } catch (IllegalArgumentException | SQLiteException e) {
+      FLog.w(ReactConstants.TAG, "Grouped album query not supported, scanning buckets", e);
+      grouped = false;
+      bucketsCursor = resolver.query(
+              filesContentUri,
+              new String[] {
+                      Video.Media.BUCKET_ID,
+                      Video.Media.BUCKET_DISPLAY_NAME,
+              },
+              SELECTION_IS_MEDIA,
+              null,
+              AssetFilter.SORT_ORDER_NEWEST_FIRST,
+              cancellationSignal);
+    } finally {
+      PerformanceStats.end(PerformanceStats.QUERY, queryStart);
+    }
+    if (bucketsCursor == null) {
+      return null;
+    }
+    return readBuckets(bucketsCursor, grouped, cancellationSignal);
+  }
+
+  private static List<Bucket> queryBuckets(
+      MediaIndex mediaIndex,
+      CancellationSignal cancellationSignal) {
+    long queryStart = PerformanceStats.start(PerformanceStats.QUERY);
+    Cursor bucketsCursor;
+    try {
+      bucketsCursor = mediaIndex.queryGrouped(
+              new String[] {
+                      Video.Media.BUCKET_ID,
+                      Video.Media.BUCKET_DISPLAY_NAME,
+                      "COUNT(*) AS " + COLUMN_COUNT,
+                      "MAX(" + FileColumns.DATE_MODIFIED + ") AS " + COLUMN_LATEST,
+              },
+              null,
+              null,
+              Video.Media.BUCKET_ID,
+              COLUMN_LATEST + " DESC");
+    } finally {
+      PerformanceStats.end(PerformanceStats.QUERY, queryStart);
+    }
+    return readBuckets(bucketsCursor, true, cancellationSignal);
+  }
+
+  private static List<Bucket> readBuckets(
+      Cursor bucketsCursor,
+      boolean grouped,
+      CancellationSignal cancellationSignal) {
+    long iterationStart = PerformanceStats.start(PerformanceStats.CURSOR_ITERATION);
+    int rows = 0;
+    try {
+      int bucketIdIndex = bucketsCursor.getColumnIndex(Video.Media.BUCKET_ID);
+      int bucketNameIndex = bucketsCursor.getColumnIndex(Video.Media.BUCKET_DISPLAY_NAME);
+      int countIndex = bucketsCursor.getColumnIndex(COLUMN_COUNT);
+      // Keeps the buckets in the order they are first seen, i.e. most recently modified first.
+      LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>();
+      while (bucketsCursor.moveToNext()) {
+        cancellationSignal.throwIfCanceled();
+        String bucketId = bucketsCursor.getString(bucketIdIndex);
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null) {
+          bucket = new Bucket(bucketId, bucketsCursor.getString(bucketNameIndex));
+          buckets.put(bucketId, bucket);
+        }
+        bucket.count += grouped ? bucketsCursor.getInt(countIndex) : 1;
+        rows++;
+      }
+      return new ArrayList<>(buckets.values());
+    } finally {
+      bucketsCursor.close();
+      PerformanceStats.count(PerformanceStats.ROWS, rows);
+      PerformanceStats.end(PerformanceStats.CURSOR_ITERATION, iterationStart);
+    }
+  }
+
+  private static void putAlbums(
+          ContentResolver resolver,
+          @Nullable MediaIndex mediaIndex,
+          VideoThumbnailQueue thumbnailQueue,
+          List<Bucket> buckets,
+          int previewCount,
+          CancellationSignal cancellationSignal,
+          WritableMap response) {
+    WritableArray albums = new WritableNativeArray();
+    if (buckets.isEmpty()) {
+      response.putArray("albums", albums);
+      return;
+    }
+
+    // The previews of every album are copied into one cursor, one bounded query per album, so that
+    // their video thumbnails can be resolved together. The first album contains all assets.
+    String[] projection = AssetRowMapper.getProjection(null);
+    MatrixCursor previews = new MatrixCursor(projection);
+    int[] previewEnds = new int[buckets.size() + 1];
+    int totalCount = 0;
+    for (int i = 0; i <= buckets.size(); i++) {
+      String bucketId = i == 0 ? null : buckets.get(i - 1).id;
+      // A null bucket id would select every asset, such rows have no album to preview anyway.
+      if (previewCount > 0 && (i == 0 || bucketId != null)) {
+        appendPreviews(
+            resolver,
+            mediaIndex,
+            projection,
+            bucketId,
+            previewCount,
+            cancellationSignal,
+            previews);
+      }
+      previewEnds[i] = previews.getCount();
+      if (i > 0) {
+        totalCount += buckets.get(i - 1).count;
+      }
+    }
+
+    AssetRowMapper mapper = new AssetRowMapper(previews, null);
+    List<Long> videoIds = new ArrayList<>();
+    while (previews.moveToNext()) {
+      if (mapper.isVideo()) {
+        videoIds.add(mapper.getId());
+      }
+    }
+    Map<Long, String> videoThumbnails = getVideoThumbnails(resolver, thumbnailQueue, videoIds);
+
+    previews.moveToFirst();
+    for (int i = 0; i <= buckets.size(); i++) {
+      WritableMap album = new WritableNativeMap();
+      if (i == 0) {
+        album.putInt("assetCount", totalCount);
+      } else {
+        Bucket bucket = buckets.get(i - 1);
+        album.putString("id", bucket.id);
+        album.putString("title", bucket.name);
+        album.putInt("assetCount", bucket.count);
+      }
+      WritableArray previewAssets = new WritableNativeArray();
+      AssetRowMapper.Rows previewRows = new AssetRowMapper.Rows(previewAssets);
+      for (; previews.getPosition() < previewEnds[i]; previews.moveToNext()) {
+        mapper.map(videoThumbnails, previewRows);
+      }
+      album.putArray("previewAssets", previewAssets);
+      albums.pushMap(album);
+    }
+    previews.close();
+    response.putArray("albums", albums);
+  }
+
+  /**
+   * Append the most recent assets of a bucket to {@code previews}.
+   *
+   * @param bucketId the bucket, or {@code null} for all photos and videos
+   */
+  private static void appendPreviews(
+          ContentResolver resolver,
+          @Nullable MediaIndex mediaIndex,
+          String[] projection,
+          @Nullable String bucketId,
+          int previewCount,
+          CancellationSignal cancellationSignal,
+          MatrixCursor previews) {
+    String selection = SELECTION_IS_MEDIA;
+    String[] selectionArgs = null;
+    if (bucketId != null) {
+      selection += " AND " + SELECTION_BUCKET;
+      selectionArgs = new String[] { bucketId };
+    }
+    Cursor cursor = queryMedia(
+            resolver,
+            mediaIndex,
+            projection,
+            selection,
+            selectionArgs,
+            AssetFilter.SORT_ORDER_NEWEST_FIRST + " LIMIT " + previewCount,
+            cancellationSignal);
+    if (cursor == null) {
+      return;
+    }
+    try {
+      appendRows(cursor, previews);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Copy the remaining rows of {@code from} into {@code to}, which must have the same columns.
+   */
+  private static void appendRows(Cursor from, MatrixCursor to) {
+    while (from.moveToNext()) {
+      to.addRow(copyRow(from));
+    }
+  }
+
+  /**
+   * @return the values of the current row of the cursor, in a form accepted by
+   *         {@link MatrixCursor#addRow(Object[])}
+   */
+  static Object[] copyRow(Cursor cursor) {
+    int columnCount = cursor.getColumnCount();
+    Object[] row = new Object[columnCount];
+    for (int column = 0; column < columnCount; column++) {
+      switch (cursor.getType(column)) {
+        case Cursor.FIELD_TYPE_INTEGER:
+          row[column] = cursor.getLong(column);
+          break;
+        case Cursor.FIELD_TYPE_FLOAT:
+          row[column] = cursor.getDouble(column);
+          break;
+        case Cursor.FIELD_TYPE_STRING:
+          row[column] = cursor.getString(column);
+          break;
+        case Cursor.FIELD_TYPE_BLOB:
+          row[column] = cursor.getBlob(column);
+          break;
+        default:
+          row[column] = null;
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Get photos and videos from the media store, most recent first unless specified otherwise.
+   *
+   * @param params a map containing the following keys:
+   *        <ul>
+   *          <li>first (mandatory): a number representing the number of photos to fetch</li>
+   *          <li>
+   *            after (optional): an opaque cursor that matches page_info[end_cursor] returned
+   *            by a previous call to {@link #getPhotos}
+   *          </li>
+   *          <li>
+   *            albumId, mimeTypes, mediaType, fromDate, toDate, minWidth, minHeight,
+   *            sortDirection (optional): which assets to return and in which order, see
+   *            {@link AssetFilter#fromParams}
+   *          </li>
+   *          <li>
+   *            fields (optional): the asset fields to return (e.g. ['id', 'uri']), all of them
+   *            if omitted; only the columns needed for these are queried
+   *          </li>
+   *          <li>
+   *            useIndex (optional): answer from the local media index instead of the media store
+   *          </li>
+   *          <li>
+   *            prefetch (optional): start loading the next page as soon as this one is done, so
+   *            that it can be returned from memory when it is asked for
+   *          </li>
+   *          <li>
+   *            format (optional): 'rows' (the default) for an array of asset maps, or 'columnar'
+   *            for one array per field (see {@link AssetColumns}), which is cheaper to pass to JS
+   *          </li>
+   *          <li>requestId (optional): an id to pass to {@link #cancel}</li>
+   *        </ul>
+   * @param promise the Promise to be resolved when the photos are loaded; for a format of the
+   *        parameters passed to this callback, see {@code getPhotosReturnChecker} in CameraRoll.js
+   */
+  @ReactMethod
+  public void getPhotos(final ReadableMap params, final Promise promise) {
+    createGetPhotosTask(params, promise).execute(CameraRollExecutors.QUERY);
+  }
+
+  /**
+   * Like {@link #getPhotos}, but instead of resolving with all the assets at once, send them in
+   * {@code CameraRollChunk} events of {@code {requestId, assets}} while the page is being read.
+   * The last event is {@code {requestId, done: true, page_info}}, and the promise is then resolved
+   * with {@code {page_info}}.
+   *
+   * @param params the same keys as for {@link #getPhotos}, and:
+   *        <ul>
+   *          <li>requestId (mandatory): included in the events, can be passed to {@link #cancel}</li>
+   *          <li>chunkSize (optional): the maximum number of assets per event, 50 by default</li>
+   *        </ul>
+   */
+  @ReactMethod
+  public void streamPhotos(final ReadableMap params, final Promise promise) {
+    if (getRequestId(params) == null) {
+      throw new JSApplicationIllegalArgumentException("requestId is required to stream photos");
+    }
+    int chunkSize = params.hasKey("chunkSize") ? params.getInt("chunkSize") : DEFAULT_CHUNK_SIZE;
+    if (chunkSize <= 0) {
+      throw new JSApplicationIllegalArgumentException("chunkSize must be positive");
+    }
+    GetPhotosTask task = createGetPhotosTask(params, promise);
+    task.setChunkSize(chunkSize);
+    task.execute(CameraRollExecutors.QUERY);
   }
 
-  public static final boolean IS_JELLY_BEAN_OR_LATER =
-      Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+  /**
+   * Count the photos and videos that {@link #getPhotos} would return, without reading them.
+   *
+   * @param params a map containing the filter keys of {@link #getPhotos} (see
+   *        {@link AssetFilter#fromParams}), {@code useIndex} and {@code requestId}
+   * @param promise to be resolved with the number of assets
+   */
+  @ReactMethod
+  public void getAssetCount(final ReadableMap params, final Promise promise) {
+    boolean useIndex = params.hasKey("useIndex") && params.getBoolean("useIndex");
+    new GetAssetCountTask(
+        getReactApplicationContext(),
+        AssetFilter.fromParams(params),
+        useIndex ? getMediaIndex() : null,
+        getRequestId(params),
+        promise)
+        .execute(CameraRollExecutors.QUERY);
+  }
 
-  private static final String[] FILES_PROJECTION = new String[]{
-          FileColumns._ID,
-          FileColumns.DATE_MODIFIED,
-          FileColumns.MIME_TYPE,
-          FileColumns.MEDIA_TYPE,
-          FileColumns.WIDTH,
-          FileColumns.HEIGHT,
-          Video.VideoColumns.DURATION,
-          MediaStore.MediaColumns.DISPLAY_NAME,
-          Video.Media.BUCKET_ID,
-          Video.Media.BUCKET_DISPLAY_NAME,
-  };
+  private static class GetAssetCountTask extends CancellableTask {
+    private final Context mContext;
+    private final AssetFilter mFilter;
+    private final @Nullable MediaIndex mMediaIndex;
+    private final Promise mPromise;
 
-  private static final String SELECTION_BUCKET = Images.Media.BUCKET_ID + " = ?";
-  private static final String SELECTION_DATE_MODIFIED = FileColumns.DATE_MODIFIED + " < ?";
+    private GetAssetCountTask(
+        ReactContext context,
+        AssetFilter filter,
+        @Nullable MediaIndex mediaIndex,
+        @Nullable String requestId,
+        Promise promise) {
+      super(context, NAME, requestId);
+      mContext = context;
+      mFilter = filter;
+      mMediaIndex = mediaIndex;
+      mPromise = promise;
+    }
 
-  private static final String SELECTION_IS_MEDIA = "(" + FileColumns.MEDIA_TYPE + "="
-          + FileColumns.MEDIA_TYPE_IMAGE
-          + " OR "
-          + FileColumns.MEDIA_TYPE
-          + "="
-          + FileColumns.MEDIA_TYPE_VIDEO
-          + ")";
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Counting assets was cancelled");
+    }
 
-  public CameraRollManager(ReactApplicationContext reactContext) {
-    super(reactContext);
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+      List<String> selectionArgs = new ArrayList<>();
+      String selection = mFilter.getSelection(null, selectionArgs);
+      try {
+        Cursor countCursor = queryMedia(
+            mContext.getContentResolver(),
+            mMediaIndex,
+            new String[] { "COUNT(*) AS " + COLUMN_COUNT },
+            selection,
+            selectionArgs.toArray(new String[selectionArgs.size()]),
+            null,
+            getCancellationSignal());
+        if (countCursor == null) {
+          if (settle()) {
+            mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not count photos");
+          }
+          return;
+        }
+        int count;
+        try {
+          count = countCursor.moveToFirst() ? countCursor.getInt(0) : 0;
+        } finally {
+          countCursor.close();
+        }
+        if (settle()) {
+          mPromise.resolve(count);
+        }
+      } catch (OperationCanceledException e) {
+        // Rejected by onRequestCancelled.
+      } catch (SecurityException e) {
+        if (settle()) {
+          mPromise.reject(
+              ERROR_UNABLE_TO_LOAD_PERMISSION,
+              "Could not count photos: need READ_EXTERNAL_STORAGE permission",
+              e);
+        }
+      }
+    }
   }
 
   /**
-   * Save an image to the gallery (i.e. {@link MediaStore.Images}). This copies the original file
-   * from wherever it may be to the external storage pictures directory, so that it can be scanned
-   * by the MediaScanner.
+   * Count the photos and videos that {@link #getPhotos} would return per day, month or year, e.g.
+   * for the fast scroller of a timeline.
    *
-   * @param uri the file:// URI of the image to save
-   * @param promise to be resolved or rejected
+   * @param params a map containing the filter keys of {@link #getPhotos} (see
+   *        {@link AssetFilter#fromParams}), {@code useIndex}, {@code requestId} and:
+   *        <ul>
+   *          <li>granularity (optional): 'day', 'month' (the default) or 'year'</li>
+   *        </ul>
+   * @param promise to be resolved with {@code {sections: [{sectionStart, count, offset,
+   *        firstCursor}]}}, where {@code sectionStart} is in seconds since the epoch (sections
+   *        follow the local time of the device), {@code offset} is the number of assets in the
+   *        sections before it, and {@code firstCursor} can be passed to {@link #getPhotos} as
+   *        {@code after} to get the assets of the section
    */
   @ReactMethod
-  public void saveToCameraRoll(String uri, String type, Promise promise) {
-    MediaType parsedType = type.equals("video") ? MediaType.VIDEO : MediaType.PHOTO;
-    new SaveToCameraRoll(getReactApplicationContext(), Uri.parse(uri), parsedType, promise)
-        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  public void getDateSections(final ReadableMap params, final Promise promise) {
+    DateSections.Granularity granularity = params.hasKey("granularity")
+        ? DateSections.Granularity.parse(params.getString("granularity"))
+        : DateSections.Granularity.MONTH;
+    boolean useIndex = params.hasKey("useIndex") && params.getBoolean("useIndex");
+    new GetDateSectionsTask(
+        getReactApplicationContext(),
+        AssetFilter.fromParams(params),
+        granularity,
+        useIndex ? getMediaIndex() : null,
+        getRequestId(params),
+        promise)
+        .execute(CameraRollExecutors.QUERY);
   }
 
-  private enum MediaType { PHOTO, VIDEO };
-  private static class SaveToCameraRoll extends GuardedAsyncTask<Void, Void> {
-
+  private static class GetDateSectionsTask extends CancellableTask {
     private final Context mContext;
-    private final Uri mUri;
+    private final AssetFilter mFilter;
+    private final DateSections.Granularity mGranularity;
+    private final @Nullable MediaIndex mMediaIndex;
     private final Promise mPromise;
-    private final MediaType mType;
 
-    public SaveToCameraRoll(ReactContext context, Uri uri, MediaType type, Promise promise) {
-      super(context);
+    private GetDateSectionsTask(
+        ReactContext context,
+        AssetFilter filter,
+        DateSections.Granularity granularity,
+        @Nullable MediaIndex mediaIndex,
+        @Nullable String requestId,
+        Promise promise) {
+      super(context, NAME, requestId);
       mContext = context;
-      mUri = uri;
+      mFilter = filter;
+      mGranularity = granularity;
+      mMediaIndex = mediaIndex;
       mPromise = promise;
-      mType = type;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Getting date sections was cancelled");
     }
 
     @Override
     protected void doInBackgroundGuarded(Void... params) {
-      File source = new File(mUri.getPath());
-      FileChannel input = null, output = null;
       try {
-        File exportDir = (mType == MediaType.PHOTO)
-          ? Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
-          : Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES);
-        exportDir.mkdirs();
-        if (!exportDir.isDirectory()) {
-          mPromise.reject(ERROR_UNABLE_TO_LOAD, "External media storage directory not available");
+        WritableArray sections = DateSections.query(
+            mContext.getContentResolver(),
+            mMediaIndex,
+            mFilter,
+            mGranularity,
+            getCancellationSignal());
+        if (sections == null) {
+          if (settle()) {
+            mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get date sections");
+          }
           return;
         }
-        File dest = new File(exportDir, source.getName());
-        int n = 0;
-        String fullSourceName = source.getName();
-        String sourceName, sourceExt;
-        if (fullSourceName.indexOf('.') >= 0) {
-          sourceName = fullSourceName.substring(0, fullSourceName.lastIndexOf('.'));
-          sourceExt = fullSourceName.substring(fullSourceName.lastIndexOf('.'));
-        } else {
-          sourceName = fullSourceName;
-          sourceExt = "";
-        }
-        while (!dest.createNewFile()) {
-          dest = new File(exportDir, sourceName + "_" + (n++) + sourceExt);
-        }
-        input = new FileInputStream(source).getChannel();
-        output = new FileOutputStream(dest).getChannel();
-        output.transferFrom(input, 0, input.size());
-        input.close();
-        output.close();
-
-        MediaScannerConnection.scanFile(
-            mContext,
-            new String[]{dest.getAbsolutePath()},
-            null,
-            new MediaScannerConnection.OnScanCompletedListener() {
-              @Override
-              public void onScanCompleted(String path, Uri uri) {
-                if (uri != null) {
-                  mPromise.resolve(uri.toString());
-                } else {
-                  mPromise.reject(ERROR_UNABLE_TO_SAVE, "Could not add image to gallery");
-                }
-              }
-            });
-      } catch (IOException e) {
-        mPromise.reject(e);
-      } finally {
-        if (input != null && input.isOpen()) {
-          try {
-            input.close();
-          } catch (IOException e) {
-            FLog.e(ReactConstants.TAG, "Could not close input channel", e);
-          }
+        WritableMap response = new WritableNativeMap();
+        response.putArray("sections", sections);
+        if (settle()) {
+          mPromise.resolve(response);
         }
-        if (output != null && output.isOpen()) {
-          try {
-            output.close();
-          } catch (IOException e) {
-            FLog.e(ReactConstants.TAG, "Could not close output channel", e);
-          }
+      } catch (OperationCanceledException e) {
+        // Rejected by onRequestCancelled.
+      } catch (SecurityException e) {
+        if (settle()) {
+          mPromise.reject(
+              ERROR_UNABLE_TO_LOAD_PERMISSION,
+              "Could not get date sections: need READ_EXTERNAL_STORAGE permission",
+              e);
         }
       }
     }
   }
 
+  /**
+   * Get photos and videos by id, e.g. to restore a selection, in the same format as
+   * {@link #getPhotos}. Ids are looked up in batches, so hundreds of them take a few queries.
+   *
+   * @param ids the asset ids, as returned in the {@code id} field of assets
+   * @param options a map containing the following optional keys:
+   *        <ul>
+   *          <li>fields, format, useIndex, requestId: see {@link #getPhotos}</li>
+   *        </ul>
+   * @param promise to be resolved with {@code {assets, missingIds}}: the assets in the order of
+   *        {@code ids}, and the ids of those that no longer exist (or aren't photos or videos)
+   */
   @ReactMethod
-  public void getAlbums(final ReadableMap params, final Promise promise) {
-    new GetAlbumsTask(
-            getReactApplicationContext(),
-            promise)
-            .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+  public void getAssetsByIds(ReadableArray ids, ReadableMap options, Promise promise) {
+    boolean useIndex = options.hasKey("useIndex") && options.getBoolean("useIndex");
+    new GetAssetsByIdsTask(
+        getReactApplicationContext(),
+        toIdList(ids),
+        getFields(options),
+        isColumnar(options),
+        useIndex ? getMediaIndex() : null,
+        mThumbnailQueue,
+        getRequestId(options),
+        promise)
+        .execute(CameraRollExecutors.QUERY);
   }
 
-  private static class GetAlbumsTask extends GuardedAsyncTask<Void, Void> {
+  private static class GetAssetsByIdsTask extends CancellableTask {
     private final Context mContext;
+    private final List<Long> mIds;
+    private final @Nullable Set<String> mFields;
+    private final boolean mColumnar;
+    private final @Nullable MediaIndex mMediaIndex;
+    private final VideoThumbnailQueue mThumbnailQueue;
     private final Promise mPromise;
 
-    private GetAlbumsTask(
-            ReactContext context,
-            Promise promise) {
-      super(context);
+    private GetAssetsByIdsTask(
+        ReactContext context,
+        List<Long> ids,
+        @Nullable Set<String> fields,
+        boolean columnar,
+        @Nullable MediaIndex mediaIndex,
+        VideoThumbnailQueue thumbnailQueue,
+        @Nullable String requestId,
+        Promise promise) {
+      super(context, NAME, requestId);
       mContext = context;
+      mIds = ids;
+      mFields = fields;
+      mColumnar = columnar;
+      mMediaIndex = mediaIndex;
+      mThumbnailQueue = thumbnailQueue;
       mPromise = promise;
     }
 
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Getting photos was cancelled");
+    }
+
     @Override
     protected void doInBackgroundGuarded(Void... params) {
-      StringBuilder selection = new StringBuilder("1");
-      List<String> selectionArgs = new ArrayList<>();
-      selection.append(" AND " + SELECTION_IS_MEDIA);
-      WritableMap response = new WritableNativeMap();
       ContentResolver resolver = mContext.getContentResolver();
+      CancellationSignal cancellationSignal = getCancellationSignal();
+      String[] projection = AssetRowMapper.getProjection(mFields);
       try {
-        Uri filesContentUri = Files.getContentUri("external");
-        Cursor photosCursor = resolver.query(
-                filesContentUri,
-                FILES_PROJECTION,
-                selection.toString(),
-                selectionArgs.toArray(new String[selectionArgs.size()]),
-                FileColumns.DATE_MODIFIED
-                        + " DESC, "
-                        + FileColumns.DATE_MODIFIED
-        );
-        if (photosCursor == null) {
-          mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get photos");
-        } else {
+        List<Long> uniqueIds = new ArrayList<>(new LinkedHashSet<>(mIds));
+        Map<Long, Object[]> rows = new HashMap<>();
+        for (int start = 0; start < uniqueIds.size(); start += MAX_SELECTION_ARGS) {
+          List<Long> chunk =
+              uniqueIds.subList(start, Math.min(uniqueIds.size(), start + MAX_SELECTION_ARGS));
+          Cursor cursor = queryMedia(
+              resolver,
+              mMediaIndex,
+              projection,
+              SELECTION_IS_MEDIA + " AND " + selectionIn(FileColumns._ID, chunk.size()),
+              toSelectionArgs(chunk),
+              null,
+              cancellationSignal);
+          if (cursor == null) {
+            if (settle()) {
+              mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get photos");
+            }
+            return;
+          }
           try {
-            putAlbums(resolver, photosCursor, response);
+            // The projection always starts with the id.
+            while (cursor.moveToNext()) {
+              rows.put(cursor.getLong(0), copyRow(cursor));
+            }
           } finally {
-            photosCursor.close();
-            mPromise.resolve(response);
+            cursor.close();
           }
         }
-      } catch (SecurityException e) {
-        mPromise.reject(
-                ERROR_UNABLE_TO_LOAD_PERMISSION,
-                "Could not get photos: need READ_EXTERNAL_STORAGE permission",
-                e);
-      }
-    }
-  }
 
-  private static void putAlbums(
-          ContentResolver resolver,
-          Cursor cursor,
-          WritableMap response) {
-    WritableArray albums = new WritableNativeArray();
-    int bucketIdIndex = cursor.getColumnIndex(Video.VideoColumns.BUCKET_ID);
-    int bucketNameIndex = cursor.getColumnIndex(Video.VideoColumns.BUCKET_DISPLAY_NAME);
-    int idIndex = cursor.getColumnIndex(FileColumns._ID);
-    int mimeTypeIndex = cursor.getColumnIndex(FileColumns.MIME_TYPE);
-    int mediaTypeIndex = cursor.getColumnIndex(FileColumns.MEDIA_TYPE);
-    int dateModifiedIndex = cursor.getColumnIndex(FileColumns.DATE_MODIFIED);
-    int widthIndex = IS_JELLY_BEAN_OR_LATER ? cursor.getColumnIndex(FileColumns.WIDTH) : -1;
-    int heightIndex = IS_JELLY_BEAN_OR_LATER ? cursor.getColumnIndex(FileColumns.HEIGHT) : -1;
-    HashMap<String, WritableMap> albumsMap = new HashMap<>();
-    String assetCountKey = "assetCount";
-    if (cursor.moveToFirst()) {
-      {
-        WritableMap album = new WritableNativeMap();
-        album.putInt(assetCountKey, cursor.getCount());
-        WritableArray previewAssets = new WritableNativeArray();
-        WritableMap asset = new WritableNativeMap();
-        putAssetInfo(
-                resolver,
-                cursor,
-                asset,
-                mediaTypeIndex,
-                idIndex,
-                widthIndex,
-                heightIndex,
-                mimeTypeIndex,
-                dateModifiedIndex
-        );
-        previewAssets.pushMap(asset);
-        album.putArray("previewAssets", previewAssets);
-        albumsMap.put("-1", album);
-      }
-
-      while (cursor.moveToNext()) {
-        String albumId = cursor.getString(bucketIdIndex);
-        if (!albumsMap.containsKey(albumId)) {
-          WritableMap album = new WritableNativeMap();
-          String albumName = cursor.getString(bucketNameIndex);
-          album.putString("id", albumId);
-          album.putString("title", albumName);
-          album.putInt(assetCountKey, 1);
-          WritableArray previewAssets = new WritableNativeArray();
-          WritableMap asset = new WritableNativeMap();
-          putAssetInfo(
-                  resolver,
-                  cursor,
-                  asset,
-                  mediaTypeIndex,
-                  idIndex,
-                  widthIndex,
-                  heightIndex,
-                  mimeTypeIndex,
-                  dateModifiedIndex
-          );
-          previewAssets.pushMap(asset);
-          album.putArray("previewAssets", previewAssets);
-          albumsMap.put(albumId, album);
-        } else {
-          WritableMap album = albumsMap.get(albumId);
-          int count = album.getInt(assetCountKey);
-          album.putInt(assetCountKey, count + 1);
+        // Put the rows back in the order they were asked for, so that they are mapped (and their
+        // video thumbnails resolved) in one pass.
+        MatrixCursor assetsCursor = new MatrixCursor(projection, mIds.size());
+        WritableArray missingIds = new WritableNativeArray();
+        Set<Long> reportedIds = new HashSet<>();
+        for (Long id : mIds) {
+          Object[] row = rows.get(id);
+          if (row != null) {
+            assetsCursor.addRow(row);
+          } else if (reportedIds.add(id)) {
+            missingIds.pushString(String.valueOf(id));
+          }
+        }
+        WritableMap response = new WritableNativeMap();
+        try {
+          putAssets(
+              resolver,
+              mThumbnailQueue,
+              assetsCursor,
+              response,
+              Integer.MAX_VALUE,
+              mFields,
+              mColumnar,
+              cancellationSignal);
+        } finally {
+          assetsCursor.close();
+        }
+        response.putArray("missingIds", missingIds);
+        if (settle()) {
+          mPromise.resolve(response);
+        }
+      } catch (OperationCanceledException e) {
+        // Rejected by onRequestCancelled.
+      } catch (SecurityException e) {
+        if (settle()) {
+          mPromise.reject(
+              ERROR_UNABLE_TO_LOAD_PERMISSION,
+              "Could not get photos: need READ_EXTERNAL_STORAGE permission",
+              e);
         }
-      }
-      Collection<WritableMap> albumsCollection = albumsMap.values();
-      for (WritableMap album : albumsCollection) {
-        albums.pushMap(album);
       }
     }
-    response.putArray("albums", albums);
   }
 
-
-  /**
-   * Get photos from {@link MediaStore.Images}, most recent first.
-   *
-   * @param params a map containing the following keys:
-   *        <ul>
-   *          <li>first (mandatory): a number representing the number of photos to fetch</li>
-   *          <li>
-   *            after (optional): a cursor that matches page_info[end_cursor] returned by a
-   *            previous call to {@link #getPhotos}
-   *          </li>
-   *          <li>groupName (optional): an album name</li>
-   *          <li>
-   *            mimeType (optional): restrict returned images to a specific mimetype (e.g.
-   *            image/jpeg)
-   *          </li>
-   *        </ul>
-   * @param promise the Promise to be resolved when the photos are loaded; for a format of the
-   *        parameters passed to this callback, see {@code getPhotosReturnChecker} in CameraRoll.js
-   */
-  @ReactMethod
-  public void getPhotos(final ReadableMap params, final Promise promise) {
+  private GetPhotosTask createGetPhotosTask(ReadableMap params, Promise promise) {
     int first = params.getInt("first");
     String after = params.hasKey("after") ? params.getString("after") : null;
-    String albumId = params.hasKey("albumId") ? params.getString("albumId") : null;
-    ReadableArray mimeTypes = params.hasKey("mimeTypes")
-        ? params.getArray("mimeTypes")
-        : null;
+    PageCursor afterCursor = null;
+    if (!TextUtils.isEmpty(after)) {
+      afterCursor = PageCursor.parse(after);
+      if (afterCursor == null) {
+        throw new JSApplicationIllegalArgumentException("Invalid cursor: " + after);
+      }
+    }
+    AssetFilter filter = AssetFilter.fromParams(params);
     if (params.hasKey("groupTypes")) {
       throw new JSApplicationIllegalArgumentException("groupTypes is not supported on Android");
     }
+    Set<String> fields = getFields(params);
+    boolean columnar = isColumnar(params);
+    boolean useIndex = params.hasKey("useIndex") && params.getBoolean("useIndex");
+    boolean prefetch = params.hasKey("prefetch") && params.getBoolean("prefetch");
+    if (prefetch) {
+      // Prefetched pages must be dropped when the media store changes.
+      ensureMediaObserver();
+    }
 
-    new GetPhotosTask(
+    GetPhotosTask task = new GetPhotosTask(
           getReactApplicationContext(),
           first,
-          after,
-          albumId,
-          mimeTypes,
-          promise)
-          .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+          afterCursor,
+          filter,
+          fields,
+          useIndex ? getMediaIndex() : null,
+          prefetch,
+          mPageCache,
+          mThumbnailQueue,
+          getRequestId(params),
+          promise);
+    task.setColumnar(columnar);
+    return task;
   }
 
-  private static class GetPhotosTask extends GuardedAsyncTask<Void, Void> {
-    private final Context mContext;
+  private static @Nullable Set<String> getFields(ReadableMap params) {
+    if (!params.hasKey("fields")) {
+      return null;
+    }
+    ReadableArray fieldsArray = params.getArray("fields");
+    // Sorted, since it is part of the key of prefetched pages.
+    Set<String> fields = new TreeSet<>();
+    for (int i = 0; i < fieldsArray.size(); i++) {
+      String field = fieldsArray.getString(i);
+      if (!AssetRowMapper.ALL_FIELDS.contains(field)) {
+        throw new JSApplicationIllegalArgumentException("Unknown field: " + field);
+      }
+      fields.add(field);
+    }
+    return fields;
+  }
+
+  private static boolean isColumnar(ReadableMap params) {
+    if (!params.hasKey("format")) {
+      return false;
+    }
+    String format = params.getString("format");
+    if (FORMAT_COLUMNAR.equals(format)) {
+      return true;
+    } else if (!FORMAT_ROWS.equals(format)) {
+      throw new JSApplicationIllegalArgumentException("Unknown format: " + format);
+    }
+    return false;
+  }
+
+  private static class GetPhotosTask extends CancellableTask {
+    private final ReactContext mContext;
+    private final @Nullable String mRequestId;
     private final int mFirst;
-    private final @Nullable String mAfter;
-    private final @Nullable String mAlbumId;
-    private final @Nullable ReadableArray mMimeTypes;
+    private final @Nullable PageCursor mAfter;
+    private final AssetFilter mFilter;
+    private final @Nullable Set<String> mFields;
+    private final @Nullable MediaIndex mMediaIndex;
+    private final boolean mPrefetch;
+    private final PageCache mPageCache;
+    private final VideoThumbnailQueue mThumbnailQueue;
     private final Promise mPromise;
+    private int mChunkSize = 0;
+    private boolean mColumnar = false;
 
     private GetPhotosTask(
         ReactContext context,
         int first,
-        @Nullable String after,
-        @Nullable String albumId,
-        @Nullable ReadableArray mimeTypes,
+        @Nullable PageCursor after,
+        AssetFilter filter,
+        @Nullable Set<String> fields,
+        @Nullable MediaIndex mediaIndex,
+        boolean prefetch,
+        PageCache pageCache,
+        VideoThumbnailQueue thumbnailQueue,
+        @Nullable String requestId,
         Promise promise) {
-      super(context);
+      super(context, NAME, requestId);
       mContext = context;
+      mRequestId = requestId;
       mFirst = first;
       mAfter = after;
-      mAlbumId = albumId;
-      mMimeTypes = mimeTypes;
+      mFilter = filter;
+      mFields = fields;
+      mMediaIndex = mediaIndex;
+      mPrefetch = prefetch;
+      mPageCache = pageCache;
+      mThumbnailQueue = thumbnailQueue;
       mPromise = promise;
     }
 
+    /**
+     * Send the assets in events of at most {@code chunkSize} assets, instead of resolving with them.
+     */
+    public void setChunkSize(int chunkSize) {
+      mChunkSize = chunkSize;
+    }
+
+    /**
+     * Return the assets as {@link AssetColumns} instead of an array of maps.
+     */
+    public void setColumnar(boolean columnar) {
+      mColumnar = columnar;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mPromise.reject(ERROR_CANCELLED, "Getting photos was cancelled");
+    }
+
     @Override
     protected void doInBackgroundGuarded(Void... params) {
-      StringBuilder selection = new StringBuilder("1");
-      List<String> selectionArgs = new ArrayList<>();
-      selection.append(" AND " + SELECTION_IS_MEDIA);
-      if (!TextUtils.isEmpty(mAfter)) {
-        selection.append(" AND " + SELECTION_DATE_MODIFIED);
-        selectionArgs.add(mAfter);
-      }
-      if (!TextUtils.isEmpty(mAlbumId)) {
-        selection.append(" AND " + SELECTION_BUCKET);
-        selectionArgs.add(mAlbumId);
-      }
-      if (mMimeTypes != null && mMimeTypes.size() > 0) {
-        selection.append(" AND " + FileColumns.MIME_TYPE + " IN (");
-        for (int i = 0; i < mMimeTypes.size(); i++) {
-          selection.append("?,");
-          selectionArgs.add(mMimeTypes.getString(i));
-        }
-        selection.replace(selection.length() - 1, selection.length(), ")");
-      }
       WritableMap response = new WritableNativeMap();
-      ContentResolver resolver = mContext.getContentResolver();
-      // using LIMIT in the sortOrder is not explicitly supported by the SDK (which does not support
-      // setting a limit at all), but it works because this specific ContentProvider is backed by
-      // an SQLite DB and forwards parameters to it without doing any parsing / validation.
+      final ContentResolver resolver = mContext.getContentResolver();
+      CancellationSignal cancellationSignal = getCancellationSignal();
       try {
-        Uri filesContentUri = Files.getContentUri("external");
-        Cursor photosCursor = resolver.query(
-                filesContentUri,
-                FILES_PROJECTION,
-                selection.toString(),
-                selectionArgs.toArray(new String[selectionArgs.size()]),
-                // set LIMIT to first + 1 so that we know how to populate page_info
-                FileColumns.DATE_MODIFIED
-                        + " DESC, "
-                        + FileColumns.DATE_MODIFIED
-                        + " DESC LIMIT "
-                        + (mFirst + 1)
-        );
+        PageCache.Page prefetched = mPageCache.take(getCacheKey(mAfter));
+        Cursor photosCursor = prefetched != null
+            ? prefetched.toCursor()
+            : queryPage(resolver, mAfter, cancellationSignal);
         if (photosCursor == null) {
-          mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get photos");
+          if (settle()) {
+            mPromise.reject(ERROR_UNABLE_TO_LOAD, "Could not get photos");
+          }
         } else {
+          // Only sent once the task has settled, so that a cancelled stream doesn't report done.
+          WritableMap doneEvent = null;
           try {
-            putAssets(resolver, photosCursor, response, mFirst);
+            if (mChunkSize > 0) {
+              streamAssets(resolver, photosCursor, cancellationSignal);
+              doneEvent = new WritableNativeMap();
+              doneEvent.putString("requestId", mRequestId);
+              doneEvent.putBoolean("done", true);
+              putPageInfo(photosCursor, doneEvent, mFirst);
+            } else {
+              putAssets(
+                  resolver,
+                  mThumbnailQueue,
+                  photosCursor,
+                  response,
+                  mFirst,
+                  mFields,
+                  mColumnar,
+                  cancellationSignal);
+            }
             putPageInfo(photosCursor, response, mFirst);
+            final PageCursor endCursor = getEndCursor(photosCursor, mFirst);
+            if (mPrefetch && endCursor != null) {
+              mPageCache.prefetch(
+                  getCacheKey(endCursor),
+                  new Callable<PageCache.Page>() {
+                    @Override
+                    public PageCache.Page call() throws Exception {
+                      Cursor nextPage = queryPage(resolver, endCursor, null);
+                      if (nextPage == null) {
+                        throw new IOException("Could not get photos");
+                      }
+                      try {
+                        return PageCache.Page.copyOf(nextPage);
+                      } finally {
+                        nextPage.close();
+                      }
+                    }
+                  },
+                  CameraRollExecutors.QUERY);
+            }
           } finally {
             photosCursor.close();
+          }
+          if (settle()) {
+            if (doneEvent != null) {
+              emit(mContext, CHUNK_EVENT, doneEvent);
+            }
             mPromise.resolve(response);
           }
         }
+      } catch (OperationCanceledException e) {
+        // Rejected by onRequestCancelled.
       } catch (SecurityException e) {
-        mPromise.reject(
-            ERROR_UNABLE_TO_LOAD_PERMISSION,
-            "Could not get photos: need READ_EXTERNAL_STORAGE permission",
-            e);
+        if (settle()) {
+          mPromise.reject(
+              ERROR_UNABLE_TO_LOAD_PERMISSION,
+              "Could not get photos: need READ_EXTERNAL_STORAGE permission",
+              e);
+        }
+      }
+    }
+
+    /**
+     * Send the first {@link #mFirst} rows of {@code photos} in {@code CameraRollChunk} events. Only
+     * one chunk is marshalled at a time.
+     */
+    private void streamAssets(
+        ContentResolver resolver,
+        Cursor photos,
+        CancellationSignal cancellationSignal) {
+      photos.moveToPosition(-1);
+      int streamed = 0;
+      while (streamed < mFirst) {
+        AssetColumns assetColumns = mColumnar ? new AssetColumns() : null;
+        WritableArray assets = mColumnar ? null : new WritableNativeArray();
+        int count = pushAssets(
+            resolver,
+            mThumbnailQueue,
+            photos,
+            Math.min(mChunkSize, mFirst - streamed),
+            mFields,
+            cancellationSignal,
+            assetColumns != null ? assetColumns : new AssetRowMapper.Rows(assets));
+        if (count == 0) {
+          break;
+        }
+        WritableMap chunk = new WritableNativeMap();
+        chunk.putString("requestId", mRequestId);
+        if (assetColumns != null) {
+          chunk.putMap("assets", assetColumns.toMap());
+        } else {
+          chunk.putArray("assets", assets);
+        }
+        emit(mContext, CHUNK_EVENT, chunk);
+        streamed += count;
       }
     }
+
+    /**
+     * @return a key that identifies the page that starts after {@code after}
+     */
+    private String getCacheKey(@Nullable PageCursor after) {
+      return TextUtils.join("|", new Object[] {
+          mFirst,
+          after == null ? "" : after.encode(),
+          mFilter.getKey(),
+          mFields,
+          mMediaIndex != null,
+      });
+    }
+
+    private @Nullable Cursor queryPage(
+        ContentResolver resolver,
+        @Nullable PageCursor after,
+        @Nullable CancellationSignal cancellationSignal) {
+      List<String> selectionArgs = new ArrayList<>();
+      String selection = mFilter.getSelection(after, selectionArgs);
+      // using LIMIT in the sortOrder is not explicitly supported by the SDK (which does not support
+      // setting a limit at all), but it works because this specific ContentProvider is backed by
+      // an SQLite DB and forwards parameters to it without doing any parsing / validation.
+      return queryMedia(
+              resolver,
+              mMediaIndex,
+              AssetRowMapper.getProjection(mFields),
+              selection,
+              selectionArgs.toArray(new String[selectionArgs.size()]),
+              // set LIMIT to first + 1 so that we know how to populate page_info
+              mFilter.getSortOrder() + " LIMIT " + (mFirst + 1),
+              cancellationSignal
+      );
+    }
   }
 
   private static void putPageInfo(Cursor photos, WritableMap response, int limit) {
     WritableMap pageInfo = new WritableNativeMap();
-    pageInfo.putBoolean("has_next_page", limit < photos.getCount());
-    if (limit < photos.getCount()) {
-      photos.moveToPosition(limit - 1);
-      pageInfo.putString(
-          "end_cursor",
-          photos.getString(photos.getColumnIndex(FileColumns.DATE_MODIFIED)));
+    PageCursor endCursor = getEndCursor(photos, limit);
+    pageInfo.putBoolean("has_next_page", endCursor != null);
+    if (endCursor != null) {
+      pageInfo.putString("end_cursor", endCursor.encode());
     }
     response.putMap("page_info", pageInfo);
   }
 
+  /**
+   * @return the cursor of the last asset of the page, or {@code null} if there is no next page
+   */
+  private static @Nullable PageCursor getEndCursor(Cursor photos, int limit) {
+    if (limit >= photos.getCount()) {
+      return null;
+    }
+    photos.moveToPosition(limit - 1);
+    return new PageCursor(
+        photos.getLong(photos.getColumnIndex(FileColumns.DATE_MODIFIED)),
+        photos.getLong(photos.getColumnIndex(FileColumns._ID)));
+  }
+
   private static void putAssets(
       ContentResolver resolver,
+      VideoThumbnailQueue thumbnailQueue,
       Cursor photos,
       WritableMap response,
-      int limit) {
-    WritableArray assets = new WritableNativeArray();
-    photos.moveToFirst();
-    int idIndex = photos.getColumnIndex(FileColumns._ID);
-    int mimeTypeIndex = photos.getColumnIndex(FileColumns.MIME_TYPE);
-    int mediaTypeIndex = photos.getColumnIndex(FileColumns.MEDIA_TYPE);
-    int dateModifiedIndex = photos.getColumnIndex(FileColumns.DATE_MODIFIED);
-    int widthIndex = IS_JELLY_BEAN_OR_LATER ? photos.getColumnIndex(FileColumns.WIDTH) : -1;
-    int heightIndex = IS_JELLY_BEAN_OR_LATER ? photos.getColumnIndex(FileColumns.HEIGHT) : -1;
-
-    for (int i = 0; i < limit && !photos.isAfterLast(); i++) {
-      WritableMap asset = new WritableNativeMap();
-      boolean imageInfoSuccess = putAssetInfo(
-              resolver,
-              photos,
-              asset,
-              mediaTypeIndex,
-              idIndex,
-              widthIndex,
-              heightIndex,
-              mimeTypeIndex,
-              dateModifiedIndex
-      );
-      if (imageInfoSuccess) {
-        assets.pushMap(asset);
-      } else {
-        // we skipped an image because we couldn't get its details (e.g. width/height), so we
-        // decrement i in order to correctly reach the limit, if the cursor has enough rows
-        i--;
-      }
-      photos.moveToNext();
+      int limit,
+      @Nullable Set<String> fields,
+      boolean columnar,
+      @Nullable CancellationSignal cancellationSignal) {
+    photos.moveToPosition(-1);
+    if (columnar) {
+      AssetColumns assetColumns = new AssetColumns();
+      pushAssets(resolver, thumbnailQueue, photos, limit, fields, cancellationSignal, assetColumns);
+      response.putMap("assets", assetColumns.toMap());
+    } else {
+      WritableArray assets = new WritableNativeArray();
+      pushAssets(
+          resolver,
+          thumbnailQueue,
+          photos,
+          limit,
+          fields,
+          cancellationSignal,
+          new AssetRowMapper.Rows(assets));
+      response.putArray("assets", assets);
     }
-    response.putArray("assets", assets);
   }
 
-  private static boolean putAssetInfo(
+  /**
+   * Map up to {@code limit} rows, starting after the current position of the cursor, and write
+   * them to {@code assets}. The thumbnails of all videos among them are resolved up front, instead
+   * of querying once per row.
+   *
+   * @return the number of assets that were pushed
+   * @throws OperationCanceledException if {@code cancellationSignal} is cancelled meanwhile
+   */
+  private static int pushAssets(
       ContentResolver resolver,
+      VideoThumbnailQueue thumbnailQueue,
       Cursor photos,
-      WritableMap asset,
-      int mediaTypeIndex,
-      int idIndex,
-      int widthIndex,
-      int heightIndex,
-      int mimeTypeIndex,
-      int dateAddedIndex
-  ) {
-    boolean isVideo = photos.getInt(mediaTypeIndex) == FileColumns.MEDIA_TYPE_VIDEO;
-    if (isVideo) {
-      // Add the actual source of the video as a property.
-      Uri sourceUri = Uri.withAppendedPath(
-              Video.Media.EXTERNAL_CONTENT_URI,
-              photos.getString(idIndex));
-      asset.putString("source", sourceUri.toString());
-      asset.putString("duration", photos.getString(photos.getColumnIndex(Video.VideoColumns.DURATION)));
-
-      long videoId = photos.getLong(idIndex);
-      // Attempt to trigger the MediaScanner to generate the thumbnail before
-      // we try to get its uri.
-      MediaStore.Video.Thumbnails.getThumbnail(
-              resolver,
-              videoId,
-              Video.Thumbnails.MINI_KIND,
-              null);
-      String[] projection = {
-              Video.Thumbnails.DATA,
-      };
-      // Get the thumbnail info for this video id.
-      Cursor videoThumbnailCursor = resolver.query(
-              Video.Thumbnails.EXTERNAL_CONTENT_URI,
-              projection,
-              Video.Thumbnails.VIDEO_ID + "=?",
-              new String[] { String.valueOf(videoId) },
-              null);
-      boolean hasThumb = videoThumbnailCursor != null && videoThumbnailCursor.moveToFirst();
-      // If there is no thumbnail then the media will be returned, but with no uri.
-      if (hasThumb) {
-        int pathIndex = videoThumbnailCursor.getColumnIndex(Video.Thumbnails.DATA);
-        String uri = videoThumbnailCursor.getString(pathIndex);
-        // Return a url with file:///storage for React Native to use.
-        asset.putString("uri", "file://" + uri);
-        videoThumbnailCursor.close();
+      int limit,
+      @Nullable Set<String> fields,
+      @Nullable CancellationSignal cancellationSignal,
+      AssetRowMapper.Sink assets) {
+    AssetRowMapper mapper = new AssetRowMapper(photos, fields);
+    int start = photos.getPosition();
+
+    List<Long> videoIds = new ArrayList<>();
+    if (mapper.needsThumbnails()) {
+      for (int i = 0; i < limit && photos.moveToNext(); i++) {
+        if (mapper.isVideo()) {
+          videoIds.add(mapper.getId());
+        }
       }
-    } else {
-      Uri photoUri = Uri.withAppendedPath(
-              Images.Media.EXTERNAL_CONTENT_URI,
-              photos.getString(idIndex));
-      asset.putString("uri", photoUri.toString());
-      asset.putString("source", photoUri.toString());
-    }
-
-    float width = photos.getInt(widthIndex);
-    float height = photos.getInt(heightIndex);
-    String mediaType = isVideo ? "video" : "photo";
-    asset.putDouble("width", width);
-    asset.putDouble("height", height);
-    asset.putString("fileName", photos.getString(photos.getColumnIndex(MediaStore.MediaColumns.DISPLAY_NAME)));
-    asset.putString("mimeType", photos.getString(mimeTypeIndex));
-    asset.putString("mediaType", mediaType);
-    asset.putDouble("creationDate", photos.getLong(dateAddedIndex));
-    asset.putString("id", photos.getString(idIndex));
-    return true;
+      photos.moveToPosition(start);
+    }
+    Map<Long, String> videoThumbnails = getVideoThumbnails(resolver, thumbnailQueue, videoIds);
+
+    long iterationStart = PerformanceStats.start(PerformanceStats.CURSOR_ITERATION);
+    int count = 0;
+    try {
+      for (; count < limit && photos.moveToNext(); count++) {
+        if (cancellationSignal != null) {
+          cancellationSignal.throwIfCanceled();
+        }
+        mapper.map(videoThumbnails, assets);
+      }
+    } finally {
+      PerformanceStats.count(PerformanceStats.ROWS, count);
+      PerformanceStats.end(PerformanceStats.CURSOR_ITERATION, iterationStart);
+    }
+    return count;
+  }
+
+  /**
+   * Get the file paths of the MINI_KIND thumbnails for a set of videos, keyed by video id. Videos
+   * that don't have a thumbnail yet are absent from the result; they are queued for generation in
+   * the background instead of being waited on.
+   */
+  private static Map<Long, String> getVideoThumbnails(
+      ContentResolver resolver,
+      VideoThumbnailQueue thumbnailQueue,
+      List<Long> videoIds) {
+    if (videoIds.isEmpty()) {
+      return new HashMap<>();
+    }
+    long lookupStart = PerformanceStats.start(PerformanceStats.THUMBNAIL_LOOKUP);
+    Map<Long, String> thumbnails;
+    try {
+      thumbnails = VideoThumbnailQueue.lookup(resolver, videoIds);
+    } finally {
+      PerformanceStats.end(PerformanceStats.THUMBNAIL_LOOKUP, lookupStart);
+    }
+    List<Long> missingIds = new ArrayList<>();
+    for (Long videoId : videoIds) {
+      if (!thumbnails.containsKey(videoId)) {
+        missingIds.add(videoId);
+      }
+    }
+    thumbnailQueue.enqueue(missingIds);
+    return thumbnails;
   }
 }
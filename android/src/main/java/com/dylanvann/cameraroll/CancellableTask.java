@@ -0,0 +1,167 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.CancellationSignal;
+
+import com.facebook.react.bridge.GuardedAsyncTask;
+import com.facebook.react.bridge.JSApplicationIllegalArgumentException;
+import com.facebook.react.bridge.ReactContext;
+
+/**
+ * A task that JS can cancel through the {@code requestId} it passed in. Request ids are scoped to
+ * the module that started the task, and only one task per id can be in flight. Cancelling stops
+ * the task if it is still queued, and otherwise cancels its {@link CancellationSignal}, which long
+ * running work (queries, cursor iteration, decoding) should observe.
+ *
+ * Subclasses must only report their result after {@link #settle()} returned true, since the task
+ * may be cancelled concurrently; if it is, {@link #onRequestCancelled()} reports it instead. The
+ * request id is released once {@link #doInBackgroundGuarded} returns or throws, unless the task
+ * called {@link #settleLater()}.
+ */
+abstract class CancellableTask extends GuardedAsyncTask<Void, Void> {
+
+  static final String ERROR_CANCELLED = "E_CANCELLED";
+
+  // Keyed by module name and request id, see getKey. Guarded by itself.
+  private static final Map<String, CancellableTask> sRequests = new HashMap<>();
+
+  private final @Nullable String mKey;
+  private final @Nullable String mRequestId;
+  private final CancellationSignal mCancellationSignal = new CancellationSignal();
+  private final AtomicBoolean mSettled = new AtomicBoolean();
+  private volatile boolean mSettlesLater;
+
+  /**
+   * @param moduleName the name of the module that starts the task, which {@code requestId} is
+   *        scoped to
+   */
+  protected CancellableTask(
+      ReactContext reactContext,
+      String moduleName,
+      @Nullable String requestId) {
+    super(reactContext);
+    mKey = requestId != null ? getKey(moduleName, requestId) : null;
+    mRequestId = requestId;
+  }
+
+  private static String getKey(String moduleName, String requestId) {
+    // Module names don't contain slashes, so keys of different modules can't collide.
+    return moduleName + "/" + requestId;
+  }
+
+  /**
+   * Cancel the task that {@code moduleName} started with {@code requestId}.
+   *
+   * @return whether there was such a task that hadn't completed yet
+   */
+  static boolean cancel(String moduleName, String requestId) {
+    CancellableTask task;
+    synchronized (sRequests) {
+      task = sRequests.remove(getKey(moduleName, requestId));
+    }
+    if (task == null) {
+      return false;
+    }
+    task.cancelRequest();
+    return true;
+  }
+
+  /**
+   * Cancel this task, whether or not it has a request id.
+   */
+  final void cancelRequest() {
+    // Mark the task as cancelled first, so that it can't settle once work starts failing.
+    cancel(true);
+    mCancellationSignal.cancel();
+  }
+
+  /**
+   * Make the task cancellable by its request id, then run it.
+   *
+   * @throws JSApplicationIllegalArgumentException if a task with the same request id is still in
+   *         flight
+   */
+  final void execute(Executor executor) {
+    if (mKey != null) {
+      synchronized (sRequests) {
+        if (sRequests.containsKey(mKey)) {
+          throw new JSApplicationIllegalArgumentException(
+              "A request with id " + mRequestId + " is already in progress");
+        }
+        sRequests.put(mKey, this);
+      }
+    }
+    executeOnExecutor(executor);
+  }
+
+  final CancellationSignal getCancellationSignal() {
+    return mCancellationSignal;
+  }
+
+  /**
+   * Claim the right to report the result of this task. If the task was cancelled, the cancellation
+   * is reported instead, unless that already happened.
+   *
+   * @return false if the result was already reported, or the task was cancelled
+   */
+  protected final boolean settle() {
+    if (isCancelled()) {
+      if (claim()) {
+        onRequestCancelled();
+      }
+      return false;
+    }
+    return claim();
+  }
+
+  /**
+   * Keep the request id after {@link #doInBackgroundGuarded} returns, so that the task can still be
+   * cancelled, because its result is reported by a callback that runs later. That callback must
+   * then call {@link #settle()}, whatever happens.
+   */
+  protected final void settleLater() {
+    mSettlesLater = true;
+  }
+
+  private boolean claim() {
+    unregister();
+    return mSettled.compareAndSet(false, true);
+  }
+
+  private void unregister() {
+    if (mKey != null) {
+      synchronized (sRequests) {
+        if (sRequests.get(mKey) == this) {
+          sRequests.remove(mKey);
+        }
+      }
+    }
+  }
+
+  @Override
+  protected final void onPostExecute(Void result) {
+    // The id can be reused even if the task didn't settle, e.g. because it threw.
+    if (!mSettlesLater) {
+      unregister();
+    }
+  }
+
+  @Override
+  protected final void onCancelled() {
+    if (claim()) {
+      onRequestCancelled();
+    }
+  }
+
+  /**
+   * Report that the task was cancelled, e.g. by rejecting its promise with
+   * {@link #ERROR_CANCELLED}. This may be called on any thread.
+   */
+  protected abstract void onRequestCancelled();
+}
@@ -0,0 +1,307 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.bridge.JSApplicationIllegalArgumentException;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
+import com.facebook.react.common.ReactConstants;
+
+/**
+ * Counts the assets that match an {@link AssetFilter} per day, month or year of their
+ * {@code date_modified}, in device local time, with one grouped query. Each section comes with a
+ * cursor that makes {@link CameraRollManager#getPhotos} start at its first asset, so that a
+ * timeline can jump to any date with a single call.
+ */
+final class DateSections {
+
+  enum Granularity {
+    DAY("start of day"),
+    MONTH("start of month"),
+    YEAR("start of year");
+
+    // The SQLite date modifier that truncates a time to the start of the section.
+    private final String mModifier;
+
+    Granularity(String modifier) {
+      mModifier = modifier;
+    }
+
+    static Granularity parse(String granularity) {
+      if ("day".equals(granularity)) {
+        return DAY;
+      } else if ("month".equals(granularity)) {
+        return MONTH;
+      } else if ("year".equals(granularity)) {
+        return YEAR;
+      }
+      throw new JSApplicationIllegalArgumentException("Unknown granularity: " + granularity);
+    }
+
+    /**
+     * @return the start of the section that contains {@code calendar}, in seconds since the epoch;
+     *         {@code calendar} is truncated to it
+     */
+    long truncate(Calendar calendar) {
+      switch (this) {
+        case YEAR:
+          calendar.set(Calendar.MONTH, Calendar.JANUARY);
+          // Fall through.
+        case MONTH:
+          calendar.set(Calendar.DAY_OF_MONTH, 1);
+          // Fall through.
+        default:
+          calendar.set(Calendar.HOUR_OF_DAY, 0);
+          calendar.set(Calendar.MINUTE, 0);
+          calendar.set(Calendar.SECOND, 0);
+          calendar.set(Calendar.MILLISECOND, 0);
+      }
+      return calendar.getTimeInMillis() / 1000;
+    }
+
+    /**
+     * Move {@code calendar}, which is at the start of a section, to the start of the next one.
+     */
+    void next(Calendar calendar) {
+      switch (this) {
+        case YEAR:
+          calendar.add(Calendar.YEAR, 1);
+          break;
+        case MONTH:
+          calendar.add(Calendar.MONTH, 1);
+          break;
+        default:
+          calendar.add(Calendar.DAY_OF_MONTH, 1);
+      }
+    }
+  }
+
+  private static final String COLUMN_SECTION_START = "section_start";
+  private static final String COLUMN_COUNT = "asset_count";
+  private static final String COLUMN_FIRST_DATE = "first_date_modified";
+
+  private static final class Section {
+    final long start;
+    final long firstDateModified;
+    int count;
+
+    Section(long start, long firstDateModified) {
+      this.start = start;
+      this.firstDateModified = firstDateModified;
+    }
+  }
+
+  private DateSections() {
+  }
+
+  /**
+   * Get the sections from the local media index, syncing it first if needed, or from the media
+   * store if there is no index or it can't be synced.
+   *
+   * @return {@code [{sectionStart, count, offset, firstCursor}]} in the sort order of
+   *         {@code filter}, or {@code null} if the media store could not be queried
+   * @throws OperationCanceledException if {@code cancellationSignal} is cancelled
+   */
+  static @Nullable WritableArray query(
+      ContentResolver resolver,
+      @Nullable MediaIndex mediaIndex,
+      AssetFilter filter,
+      Granularity granularity,
+      CancellationSignal cancellationSignal) {
+    List<String> selectionArgs = new ArrayList<>();
+    String selection = filter.getSelection(null, selectionArgs);
+    String[] selectionArgsArray = selectionArgs.toArray(new String[selectionArgs.size()]);
+    List<Section> sections = null;
+    if (mediaIndex != null) {
+      try {
+        mediaIndex.syncIfStale(resolver);
+        sections = querySections(
+            mediaIndex, filter, granularity, selection, selectionArgsArray, cancellationSignal);
+      } catch (SQLiteException e) {
+        FLog.w(ReactConstants.TAG, "Could not use the media index, querying the media store", e);
+      }
+    }
+    if (sections == null) {
+      sections = querySections(
+          resolver, filter, granularity, selection, selectionArgsArray, cancellationSignal);
+    }
+    if (sections == null) {
+      return null;
+    }
+
+    WritableArray result = new WritableNativeArray();
+    int offset = 0;
+    for (Section section : sections) {
+      // The first asset of the section is the first one that comes after this cursor, whatever its
+      // id, since the cursor compares ids only between assets with the same date.
+      PageCursor firstCursor = new PageCursor(
+          section.firstDateModified,
+          filter.isAscending() ? Long.MIN_VALUE : Long.MAX_VALUE);
+      WritableMap item = new WritableNativeMap();
+      item.putDouble("sectionStart", section.start);
+      item.putInt("count", section.count);
+      item.putInt("offset", offset);
+      item.putString("firstCursor", firstCursor.encode());
+      result.pushMap(item);
+      offset += section.count;
+    }
+    return result;
+  }
+
+  /**
+   * Aggregate in SQLite, using the same GROUP BY injection as the album query of
+   * {@link CameraRollManager}. Providers that reject it get a scan of the dates instead.
+   */
+  private static @Nullable List<Section> querySections(
+      ContentResolver resolver,
+      AssetFilter filter,
+      Granularity granularity,
+      String selection,
+      String[] selectionArgs,
+      CancellationSignal cancellationSignal) {
+    Cursor sectionsCursor;
+    boolean grouped = true;
+    long queryStart = PerformanceStats.start(PerformanceStats.QUERY);
+    try {
+      sectionsCursor = resolver.query(
+          Files.getContentUri("external"),
+          getGroupedProjection(filter, granularity),
+          selection + ") GROUP BY (" + COLUMN_SECTION_START,
+          selectionArgs,
+          getGroupedSortOrder(filter),
+          cancellationSignal);
+    } catch (IllegalArgumentException | SQLiteException e) {
+      FLog.w(ReactConstants.TAG, "Grouped date query not supported, scanning dates", e);
+      grouped = false;
+      sectionsCursor = resolver.query(
+          Files.getContentUri("external"),
+          new String[] { FileColumns.DATE_MODIFIED },
+          selection,
+          selectionArgs,
+          filter.getSortOrder(),
+          cancellationSignal);
+    } finally {
+      PerformanceStats.end(PerformanceStats.QUERY, queryStart);
+    }
+    if (sectionsCursor == null) {
+      return null;
+    }
+    return grouped
+        ? readSections(sectionsCursor, cancellationSignal)
+        : scanSections(sectionsCursor, granularity, cancellationSignal);
+  }
+
+  private static List<Section> querySections(
+      MediaIndex mediaIndex,
+      AssetFilter filter,
+      Granularity granularity,
+      String selection,
+      String[] selectionArgs,
+      CancellationSignal cancellationSignal) {
+    Cursor sectionsCursor;
+    long queryStart = PerformanceStats.start(PerformanceStats.QUERY);
+    try {
+      sectionsCursor = mediaIndex.queryGrouped(
+          getGroupedProjection(filter, granularity),
+          selection,
+          selectionArgs,
+          COLUMN_SECTION_START,
+          getGroupedSortOrder(filter));
+    } finally {
+      PerformanceStats.end(PerformanceStats.QUERY, queryStart);
+    }
+    return readSections(sectionsCursor, cancellationSignal);
+  }
+
+  private static String[] getGroupedProjection(AssetFilter filter, Granularity granularity) {
+    return new String[] {
+        // Truncate in local time, then convert the start of the section back to UTC.
+        "CAST(strftime('%s', " + FileColumns.DATE_MODIFIED + ", 'unixepoch', 'localtime', '"
+            + granularity.mModifier + "', 'utc') AS INTEGER) AS " + COLUMN_SECTION_START,
+        "COUNT(*) AS " + COLUMN_COUNT,
+        (filter.isAscending() ? "MIN(" : "MAX(") + FileColumns.DATE_MODIFIED + ") AS "
+            + COLUMN_FIRST_DATE,
+    };
+  }
+
+  private static String getGroupedSortOrder(AssetFilter filter) {
+    return COLUMN_SECTION_START + (filter.isAscending() ? " ASC" : " DESC");
+  }
+
+  private static List<Section> readSections(
+      Cursor sectionsCursor,
+      CancellationSignal cancellationSignal) {
+    long iterationStart = PerformanceStats.start(PerformanceStats.CURSOR_ITERATION);
+    int rows = 0;
+    try {
+      int startIndex = sectionsCursor.getColumnIndex(COLUMN_SECTION_START);
+      int countIndex = sectionsCursor.getColumnIndex(COLUMN_COUNT);
+      int firstDateIndex = sectionsCursor.getColumnIndex(COLUMN_FIRST_DATE);
+      List<Section> sections = new ArrayList<>(sectionsCursor.getCount());
+      while (sectionsCursor.moveToNext()) {
+        cancellationSignal.throwIfCanceled();
+        Section section = new Section(
+            sectionsCursor.getLong(startIndex),
+            sectionsCursor.getLong(firstDateIndex));
+        section.count = sectionsCursor.getInt(countIndex);
+        sections.add(section);
+        rows++;
+      }
+      return sections;
+    } finally {
+      sectionsCursor.close();
+      PerformanceStats.count(PerformanceStats.ROWS, rows);
+      PerformanceStats.end(PerformanceStats.CURSOR_ITERATION, iterationStart);
+    }
+  }
+
+  /**
+   * Group the dates of {@code datesCursor}, which are sorted, into sections. Dates are only
+   * converted to a calendar when they leave the current section.
+   */
+  private static List<Section> scanSections(
+      Cursor datesCursor,
+      Granularity granularity,
+      CancellationSignal cancellationSignal) {
+    long iterationStart = PerformanceStats.start(PerformanceStats.CURSOR_ITERATION);
+    int rows = 0;
+    try {
+      List<Section> sections = new ArrayList<>();
+      Calendar calendar = Calendar.getInstance();
+      Section section = null;
+      long sectionEnd = 0;
+      while (datesCursor.moveToNext()) {
+        cancellationSignal.throwIfCanceled();
+        long dateModified = datesCursor.getLong(0);
+        if (section == null || dateModified < section.start || dateModified >= sectionEnd) {
+          calendar.setTimeInMillis(dateModified * 1000);
+          section = new Section(granularity.truncate(calendar), dateModified);
+          granularity.next(calendar);
+          sectionEnd = calendar.getTimeInMillis() / 1000;
+          sections.add(section);
+        }
+        section.count++;
+        rows++;
+      }
+      return sections;
+    } finally {
+      datesCursor.close();
+      PerformanceStats.count(PerformanceStats.ROWS, rows);
+      PerformanceStats.end(PerformanceStats.CURSOR_ITERATION, iterationStart);
+    }
+  }
+}
@@ -29,10 +29,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 
@@ -52,14 +56,20 @@ import com.facebook.react.module.annotations.ReactModule;
 /**
  * Native module that provides image cropping functionality.
  */
-@ReactModule(name = "RKImageEditingManager")
+@ReactModule(name = ImageEditingManager.NAME)
 public class ImageEditingManager extends ReactContextBaseJavaModule {
 
+  static final String NAME = "RKImageEditingManager";
+
   private static final List<String> LOCAL_URI_PREFIXES = Arrays.asList(
       "file://", "content://");
 
   private static final String TEMP_FILE_PREFIX = "ReactNative_cropped_image_";
 
+  /** Formats that {@link BitmapRegionDecoder} can decode part of, others are decoded fully. */
+  private static final List<String> REGION_DECODER_MIME_TYPES = Arrays.asList(
+      "image/jpeg", "image/png", "image/webp");
+
   /** Compress quality of the output file. */
   private static final int COMPRESS_QUALITY = 90;
 
@@ -93,12 +103,12 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
 
   public ImageEditingManager(ReactApplicationContext reactContext) {
     super(reactContext);
-    new CleanTask(getReactApplicationContext()).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    new CleanTask(getReactApplicationContext()).executeOnExecutor(CameraRollExecutors.IO);
   }
 
   @Override
   public String getName() {
-    return "RKImageEditingManager";
+    return NAME;
   }
 
   @Override
@@ -108,7 +118,16 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
 
   @Override
   public void onCatalystInstanceDestroy() {
-    new CleanTask(getReactApplicationContext()).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    new CleanTask(getReactApplicationContext()).executeOnExecutor(CameraRollExecutors.IO);
+  }
+
+  /**
+   * Cancel a call to {@link #cropImage} that was made with the given {@code requestId}. Its error
+   * callback is invoked, unless it had already completed.
+   */
+  @ReactMethod
+  public void cancel(String requestId) {
+    CancellableTask.cancel(NAME, requestId);
   }
 
   /**
@@ -158,7 +177,8 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
    * @param options crop parameters specified as {@code {offset: {x, y}, size: {width, height}}}.
    *        Optionally this also contains  {@code {targetSize: {width, height}}}. If this is
    *        specified, the cropped image will be resized to that size.
-   *        All units are in pixels (not DPs).
+   *        All units are in pixels (not DPs). An optional {@code requestId} can be passed to
+   *        {@link #cancel}.
    * @param success callback to be invoked when the image has been cropped; the only argument that
    *        is passed to this callback is the file:// URI of the new image
    * @param error callback to be invoked when an error occurs (e.g. can't create file etc.)
@@ -187,16 +207,17 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
         (int) offset.getDouble("y"),
         (int) size.getDouble("width"),
         (int) size.getDouble("height"),
+        options.hasKey("requestId") ? options.getString("requestId") : null,
         success,
         error);
     if (options.hasKey("displaySize")) {
       ReadableMap targetSize = options.getMap("displaySize");
       cropTask.setTargetSize(targetSize.getInt("width"), targetSize.getInt("height"));
     }
-    cropTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    cropTask.execute(CameraRollExecutors.CODEC);
   }
 
-  private static class CropTask extends GuardedAsyncTask<Void, Void> {
+  private static class CropTask extends CancellableTask {
     final Context mContext;
     final String mUri;
     final int mX;
@@ -215,9 +236,10 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
         int y,
         int width,
         int height,
+        @Nullable String requestId,
         Callback success,
         Callback error) {
-      super(context);
+      super(context, NAME, requestId);
       if (x < 0 || y < 0 || width <= 0 || height <= 0) {
         throw new JSApplicationIllegalArgumentException(String.format(
             "Invalid crop rectangle: [%d, %d, %d, %d]", x, y, width, height));
@@ -255,10 +277,22 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
       return stream;
     }
 
+    @Override
+    protected void onRequestCancelled() {
+      mError.invoke("Cropping was cancelled");
+    }
+
     @Override
     protected void doInBackgroundGuarded(Void... params) {
       try {
-        BitmapFactory.Options outOptions = new BitmapFactory.Options();
+        final BitmapFactory.Options outOptions = new BitmapFactory.Options();
+        getCancellationSignal().setOnCancelListener(
+            new CancellationSignal.OnCancelListener() {
+              @Override
+              public void onCancel() {
+                outOptions.requestCancelDecode();
+              }
+            });
 
         // If we're downscaling, we can decode the bitmap more efficiently, using less memory
         boolean hasTargetSize = (mTargetWidth > 0) && (mTargetHeight > 0);
@@ -270,41 +304,156 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
           cropped = crop(outOptions);
         }
 
+        getCancellationSignal().throwIfCanceled();
+
         String mimeType = outOptions.outMimeType;
         if (mimeType == null || mimeType.isEmpty()) {
           throw new IOException("Could not determine MIME type");
         }
 
         File tempFile = createTempFile(mContext, mimeType);
-        writeCompressedBitmapToFile(cropped, mimeType, tempFile);
+        long encodeStart = PerformanceStats.start(PerformanceStats.ENCODE);
+        try {
+          writeCompressedBitmapToFile(cropped, mimeType, tempFile);
+        } finally {
+          PerformanceStats.end(PerformanceStats.ENCODE, encodeStart);
+        }
+        PerformanceStats.count(PerformanceStats.BYTES, tempFile.length());
 
         if (mimeType.equals("image/jpeg")) {
           copyExif(mContext, Uri.parse(mUri), tempFile);
         }
 
-        mSuccess.invoke(Uri.fromFile(tempFile).toString());
+        if (settle()) {
+          mSuccess.invoke(Uri.fromFile(tempFile).toString());
+        } else {
+          tempFile.delete();
+        }
+      } catch (OperationCanceledException e) {
+        // Reported by onRequestCancelled.
       } catch (Exception e) {
-        mError.invoke(e.getMessage());
+        if (settle()) {
+          mError.invoke(e.getMessage());
+        }
       }
     }
 
     /**
-     * Reads and crops the bitmap.
-     * @param outOptions Bitmap options, useful to determine {@code outMimeType}.
+     * Decode the dimensions and MIME type of the bitmap into {@code options}, and check that the
+     * crop rectangle lies within it.
      */
-    private Bitmap crop(BitmapFactory.Options outOptions) throws IOException {
+    private void decodeBounds(BitmapFactory.Options options) throws IOException {
+      options.inJustDecodeBounds = true;
       InputStream inputStream = openBitmapInputStream();
       try {
-        // This can use a lot of memory
-        Bitmap fullResolutionBitmap = BitmapFactory.decodeStream(inputStream, null, outOptions);
-        if (fullResolutionBitmap == null) {
+        BitmapFactory.decodeStream(inputStream, null, options);
+      } finally {
+        inputStream.close();
+        options.inJustDecodeBounds = false;
+      }
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        throw new IOException("Cannot decode bitmap: " + mUri);
+      }
+      checkCropRect(options.outWidth, options.outHeight);
+    }
+
+    private void checkCropRect(int imageWidth, int imageHeight) {
+      if (mX + mWidth > imageWidth || mY + mHeight > imageHeight) {
+        throw new JSApplicationIllegalArgumentException(String.format(
+            "Crop rectangle [%d, %d, %d, %d] exceeds the image size [%d, %d]",
+            mX, mY, mWidth, mHeight, imageWidth, imageHeight));
+      }
+    }
+
+    /**
+     * Decode only {@code rect} of the bitmap, so that memory use is proportional to the crop
+     * rather than to the source. Only local bitmaps are, through a descriptor the decoder can seek
+     * in: a remote one would have to be downloaded again, and buffered whole.
+     *
+     * @param outOptions Bitmap options, with the bounds already decoded
+     * @return the region, or {@code null} if the bitmap is remote or its format can't be region
+     *         decoded
+     */
+    private @Nullable Bitmap decodeRegion(Rect rect, BitmapFactory.Options outOptions)
+        throws IOException {
+      if (!isLocalUri(mUri) || !REGION_DECODER_MIME_TYPES.contains(outOptions.outMimeType)) {
+        return null;
+      }
+      ParcelFileDescriptor descriptor = null;
+      BitmapRegionDecoder decoder = null;
+      try {
+        try {
+          descriptor = mContext.getContentResolver().openFileDescriptor(Uri.parse(mUri), "r");
+          if (descriptor == null) {
+            throw new IOException("Cannot open bitmap: " + mUri);
+          }
+          decoder = BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false);
+        } catch (IOException e) {
+          FLog.w(ReactConstants.TAG, "Cannot region decode " + mUri + ", decoding all of it", e);
+          return null;
+        }
+        if (decoder == null) {
+          return null;
+        }
+        Bitmap region = decoder.decodeRegion(rect, outOptions);
+        if (region == null) {
           throw new IOException("Cannot decode bitmap: " + mUri);
         }
-        return Bitmap.createBitmap(fullResolutionBitmap, mX, mY, mWidth, mHeight);
+        return region;
       } finally {
-        if (inputStream != null) {
+        if (decoder != null) {
+          decoder.recycle();
+        }
+        if (descriptor != null) {
+          descriptor.close();
+        }
+      }
+    }
+
+    /**
+     * Reads and crops the bitmap.
+     * @param outOptions Bitmap options, useful to determine {@code outMimeType}.
+     */
+    private Bitmap crop(BitmapFactory.Options outOptions) throws IOException {
+      // Region decoding reads the bitmap twice, once for its bounds: remote bitmaps are decoded
+      // from a single download instead.
+      boolean local = isLocalUri(mUri);
+      if (local) {
+        decodeBounds(outOptions);
+      }
+      long decodeStart = PerformanceStats.start(PerformanceStats.DECODE);
+      try {
+        if (local) {
+          Bitmap region = decodeRegion(new Rect(mX, mY, mX + mWidth, mY + mHeight), outOptions);
+          if (region != null) {
+            return region;
+          }
+        }
+
+        InputStream inputStream = openBitmapInputStream();
+        try {
+          // This can use a lot of memory, it is only needed for remote bitmaps and formats that
+          // can't be region decoded.
+          Bitmap fullResolutionBitmap = BitmapFactory.decodeStream(inputStream, null, outOptions);
+          if (fullResolutionBitmap == null) {
+            throw new IOException("Cannot decode bitmap: " + mUri);
+          }
+          try {
+            checkCropRect(fullResolutionBitmap.getWidth(), fullResolutionBitmap.getHeight());
+          } catch (JSApplicationIllegalArgumentException e) {
+            fullResolutionBitmap.recycle();
+            throw e;
+          }
+          Bitmap cropped = Bitmap.createBitmap(fullResolutionBitmap, mX, mY, mWidth, mHeight);
+          if (cropped != fullResolutionBitmap) {
+            fullResolutionBitmap.recycle();
+          }
+          return cropped;
+        } finally {
           inputStream.close();
         }
+      } finally {
+        PerformanceStats.end(PerformanceStats.DECODE, decodeStart);
       }
     }
 
@@ -324,16 +473,7 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
       // http://developer.android.com/training/displaying-bitmaps/load-bitmap.html
 
       // Just decode the dimensions
-      BitmapFactory.Options options = new BitmapFactory.Options();
-      options.inJustDecodeBounds = true;
-      InputStream inputStream = openBitmapInputStream();
-      try {
-        BitmapFactory.decodeStream(inputStream, null, options);
-      } finally {
-        if (inputStream != null) {
-          inputStream.close();
-        }
-      }
+      decodeBounds(outOptions);
 
       // This uses scaling mode COVER
 
@@ -357,23 +497,40 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
         scale = targetWidth / (float) mWidth;
       }
 
-      // Decode the bitmap. We have to open the stream again, like in the example linked above.
-      // Is there a way to just continue reading from the stream?
       outOptions.inSampleSize = getDecodeSampleSize(mWidth, mHeight, targetWidth, targetHeight);
-      options.inJustDecodeBounds = false;
-      inputStream = openBitmapInputStream();
 
       Bitmap bitmap;
+      long decodeStart = PerformanceStats.start(PerformanceStats.DECODE);
       try {
-        // This can use significantly less memory than decoding the full-resolution bitmap
-        bitmap = BitmapFactory.decodeStream(inputStream, null, outOptions);
-        if (bitmap == null) {
-          throw new IOException("Cannot decode bitmap: " + mUri);
+        // Only decode the part of the bitmap that ends up in the result, subsampled.
+        Rect rect = new Rect(
+            (int) Math.floor(newX),
+            (int) Math.floor(newY),
+            (int) Math.floor(newX + newWidth),
+            (int) Math.floor(newY + newHeight));
+        Bitmap region = decodeRegion(rect, outOptions);
+        if (region != null) {
+          Bitmap scaled = Bitmap.createScaledBitmap(region, targetWidth, targetHeight, true);
+          if (scaled != region) {
+            region.recycle();
+          }
+          return scaled;
         }
-      } finally {
-        if (inputStream != null) {
+
+        // Decode the bitmap. We have to open the stream again, like in the example linked above.
+        // Is there a way to just continue reading from the stream?
+        InputStream inputStream = openBitmapInputStream();
+        try {
+          // This can use significantly less memory than decoding the full-resolution bitmap
+          bitmap = BitmapFactory.decodeStream(inputStream, null, outOptions);
+          if (bitmap == null) {
+            throw new IOException("Cannot decode bitmap: " + mUri);
+          }
+        } finally {
           inputStream.close();
         }
+      } finally {
+        PerformanceStats.end(PerformanceStats.DECODE, decodeStart);
       }
 
       int cropX = (int) Math.floor(newX / (float) outOptions.inSampleSize);
@@ -410,7 +567,7 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
     newExif.saveAttributes();
   }
 
-  private static @Nullable File getFileFromUri(Context context, Uri uri) {
+  static @Nullable File getFileFromUri(Context context, Uri uri) {
     if (uri.getScheme().equals("file")) {
       return new File(uri.getPath());
     } else if (uri.getScheme().equals("content")) {
@@ -506,7 +663,7 @@ public class ImageEditingManager extends ReactContextBaseJavaModule {
    * {@code width, height} larger or equal to {@code targetWidth, targetHeight}.
    * This can significantly reduce memory usage.
    */
-  private static int getDecodeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+  static int getDecodeSampleSize(int width, int height, int targetWidth, int targetHeight) {
     int inSampleSize = 1;
     if (height > targetWidth || width > targetHeight) {
       int halfHeight = height / 2;
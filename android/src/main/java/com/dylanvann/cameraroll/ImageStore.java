@@ -0,0 +1,201 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * In-memory images that JS added through {@link ImageStoreManager}, identified by
+ * {@code rct-image-store://} tags like on iOS, plus the base64 encodings that were computed for
+ * tags and URIs, so that asking for the same one again doesn't read and encode it again.
+ *
+ * Everything shares one byte budget and is evicted least recently used first; encodings are
+ * dropped before images, and first of all when the system is low on memory. The store is shared
+ * by the whole process, so other native modules can look images up by tag with
+ * {@link #getImage}.
+ */
+public final class ImageStore {
+
+  static final String TAG_PREFIX = "rct-image-store://";
+  private static final String ENCODED_PREFIX = "base64:";
+
+  private static final long DEFAULT_MAX_BYTES =
+      Math.min(32 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+  private static final class Entry {
+    final @Nullable byte[] image;
+    final @Nullable String base64;
+    // The size and modification time of the source when base64 was computed, to tell whether it
+    // changed since.
+    final long sourceSize;
+    final long sourceModified;
+
+    Entry(@Nullable byte[] image, @Nullable String base64, long sourceSize, long sourceModified) {
+      this.image = image;
+      this.base64 = base64;
+      this.sourceSize = sourceSize;
+      this.sourceModified = sourceModified;
+    }
+
+    long getByteCount() {
+      // Strings take two bytes per char.
+      return (image != null ? image.length : 0) + (base64 != null ? base64.length() * 2L : 0);
+    }
+  }
+
+  private static final AtomicLong sNextTag = new AtomicLong();
+
+  // Guarded by sEntries. In access order, least recently used first. Images are keyed by their tag,
+  // encodings by "base64:" and their tag or URI, so that an image and its encoding can coexist.
+  private static final LinkedHashMap<String, Entry> sEntries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private static long sByteCount;
+  private static long sMaxBytes = DEFAULT_MAX_BYTES;
+
+  private ImageStore() {
+  }
+
+  /**
+   * @return whether {@code tag} is a tag of this store, rather than a URI
+   */
+  static boolean isTag(String tag) {
+    return tag.startsWith(TAG_PREFIX);
+  }
+
+  /**
+   * Add an image, evicting older ones if needed to stay within the budget.
+   *
+   * @return its tag, or {@code null} if the image alone is larger than the budget
+   */
+  static @Nullable String addImage(byte[] image) {
+    String tag = TAG_PREFIX + sNextTag.getAndIncrement();
+    return put(tag, new Entry(image, null, image.length, 0)) ? tag : null;
+  }
+
+  /**
+   * @return the bytes of the image that was added with {@code tag}, which must not be modified, or
+   *         {@code null} if it was removed or evicted
+   */
+  public static @Nullable byte[] getImage(String tag) {
+    synchronized (sEntries) {
+      Entry entry = sEntries.get(tag);
+      return entry != null ? entry.image : null;
+    }
+  }
+
+  public static boolean hasImage(String tag) {
+    return getImage(tag) != null;
+  }
+
+  static void removeImage(String tag) {
+    synchronized (sEntries) {
+      remove(tag);
+      remove(ENCODED_PREFIX + tag);
+    }
+  }
+
+  /**
+   * @param sourceSize the current size of the image, in bytes
+   * @param sourceModified when the image was last modified, 0 for tags since their images can't
+   *        change
+   * @return the base64 that was computed for {@code tagOrUri} while its size and modification
+   *         time were the same, or {@code null}
+   */
+  static @Nullable String getBase64(String tagOrUri, long sourceSize, long sourceModified) {
+    synchronized (sEntries) {
+      Entry entry = sEntries.get(ENCODED_PREFIX + tagOrUri);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.sourceSize != sourceSize || entry.sourceModified != sourceModified) {
+        remove(ENCODED_PREFIX + tagOrUri);
+        return null;
+      }
+      return entry.base64;
+    }
+  }
+
+  /**
+   * @param sourceModified when the image was last modified, read before it was, so that a change
+   *        while it was being read invalidates the result
+   */
+  static void putBase64(String tagOrUri, long sourceSize, long sourceModified, String base64) {
+    put(ENCODED_PREFIX + tagOrUri, new Entry(null, base64, sourceSize, sourceModified));
+  }
+
+  /**
+   * Set the byte budget of the store, evicting what no longer fits.
+   */
+  static void setMaxBytes(long maxBytes) {
+    synchronized (sEntries) {
+      sMaxBytes = maxBytes;
+      trimToSize(maxBytes, false);
+      trimToSize(maxBytes, true);
+    }
+  }
+
+  /**
+   * Release memory according to {@link ComponentCallbacks2#onTrimMemory}: encodings, which can be
+   * computed again, go first; images are only trimmed when memory is critically low or the app may
+   * be killed next.
+   */
+  static void onTrimMemory(int level) {
+    synchronized (sEntries) {
+      if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+        trimToSize(0, false);
+        trimToSize(sMaxBytes / 4, true);
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+          || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+        trimToSize(0, false);
+        trimToSize(sMaxBytes / 2, true);
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+        trimToSize(0, false);
+      }
+    }
+  }
+
+  /**
+   * @return false if the entry doesn't fit in the budget, in which case it isn't added
+   */
+  private static boolean put(String key, Entry entry) {
+    synchronized (sEntries) {
+      if (entry.getByteCount() > sMaxBytes) {
+        return false;
+      }
+      remove(key);
+      sEntries.put(key, entry);
+      sByteCount += entry.getByteCount();
+      trimToSize(sMaxBytes, false);
+      trimToSize(sMaxBytes, true);
+      return true;
+    }
+  }
+
+  private static void remove(String key) {
+    Entry entry = sEntries.remove(key);
+    if (entry != null) {
+      sByteCount -= entry.getByteCount();
+    }
+  }
+
+  /**
+   * Evict least recently used entries until the store holds at most {@code maxBytes}.
+   *
+   * @param images whether to evict images too, or only encodings
+   */
+  private static void trimToSize(long maxBytes, boolean images) {
+    Iterator<Map.Entry<String, Entry>> iterator = sEntries.entrySet().iterator();
+    while (sByteCount > maxBytes && iterator.hasNext()) {
+      Entry entry = iterator.next().getValue();
+      if (entry.image == null || images) {
+        iterator.remove();
+        sByteCount -= entry.getByteCount();
+      }
+    }
+  }
+}
@@ -9,93 +9,1117 @@
 
 package com.dylanvann.cameraroll;
 
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.provider.MediaStore;
 import android.util.Base64;
 import android.util.Base64OutputStream;
 
 import com.facebook.react.bridge.Callback;
-import com.facebook.react.bridge.GuardedAsyncTask;
+import com.facebook.react.bridge.JSApplicationIllegalArgumentException;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
 import com.facebook.react.module.annotations.ReactModule;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-@ReactModule(name = "ImageStoreManager")
+@ReactModule(name = ImageStoreManager.NAME)
 public class ImageStoreManager extends ReactContextBaseJavaModule {
 
+  static final String NAME = "ImageStoreManager";
+
   private static final int BUFFER_SIZE = 8192;
+  private static final int DEFAULT_STREAM_CHUNK_SIZE = 192 * 1024;
+
+  private static final String CHUNK_EVENT = "ImageStoreBase64Chunk";
+  private static final String RESULT_EVENT = "ImageStoreBase64Result";
+
+  private static final int DEFAULT_BATCH_CONCURRENCY = 2;
+  private static final long DEFAULT_BATCH_MAX_TOTAL_BYTES = Runtime.getRuntime().maxMemory() / 8;
+  private static final long NOT_ESTIMATED = -1;
+
+  private static final String FORMAT_JPEG = "jpeg";
+  private static final String FORMAT_PNG = "png";
+  private static final String FORMAT_WEBP = "webp";
+  private static final double DEFAULT_QUALITY = 0.9;
+
+  private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      ImageStore.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+      ImageStore.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+  };
 
   public ImageStoreManager(ReactApplicationContext reactContext) {
     super(reactContext);
+    reactContext.getApplicationContext().registerComponentCallbacks(mMemoryCallbacks);
+  }
+
+  @Override
+  public void onCatalystInstanceDestroy() {
+    getReactApplicationContext()
+        .getApplicationContext()
+        .unregisterComponentCallbacks(mMemoryCallbacks);
   }
 
   @Override
   public String getName() {
-    return "ImageStoreManager";
+    return NAME;
+  }
+
+  /**
+   * Add an image to the store, so that it can be passed around by tag (e.g. to other native
+   * modules, see {@link ImageStore#getImage}) instead of as a string. Images stay in the store
+   * until they are removed, or evicted to stay within its byte budget.
+   *
+   * @param base64 the encoded image
+   * @param success callback to be invoked with the tag of the image
+   * @param error callback to be invoked if the image can't be decoded or is larger than the budget
+   */
+  @ReactMethod
+  public void addImageFromBase64(
+      final String base64,
+      final Callback success,
+      final Callback error) {
+    CameraRollExecutors.IO.execute(new Runnable() {
+      @Override
+      public void run() {
+        byte[] image;
+        try {
+          image = Base64.decode(base64, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+          error.invoke("Invalid base64: " + e.getMessage());
+          return;
+        }
+        String tag = ImageStore.addImage(image);
+        if (tag != null) {
+          success.invoke(tag);
+        } else {
+          error.invoke("The image is larger than the image store budget");
+        }
+      }
+    });
+  }
+
+  /**
+   * @param callback to be invoked with whether the store has an image for the tag
+   */
+  @ReactMethod
+  public void hasImageForTag(String tag, Callback callback) {
+    callback.invoke(ImageStore.hasImage(tag));
+  }
+
+  @ReactMethod
+  public void removeImageForTag(String tag) {
+    ImageStore.removeImage(tag);
   }
 
   /**
-   * Calculate the base64 representation for an image. The "tag" comes from iOS naming.
+   * Set the number of bytes the store may hold, for images and cached base64 results together.
+   * It defaults to an eighth of the heap, up to 32 MiB.
+   */
+  @ReactMethod
+  public void setImageStoreMaxBytes(double maxBytes) {
+    ImageStore.setMaxBytes((long) maxBytes);
+  }
+
+  /**
+   * Calculate the base64 representation for an image. The "tag" comes from iOS naming. The result
+   * is cached in the {@link ImageStore}, and reused while the size and modification time of the
+   * image are unchanged. Images from content providers other than the media store, which can't
+   * tell when they change, aren't cached.
    *
-   * @param uri the URI of the image, file:// or content://
+   * @param uri the URI of the image, file:// or content://, or a tag from
+   *        {@link #addImageFromBase64}
    * @param success callback to be invoked with the base64 string as the only argument
    * @param error callback to be invoked on error (e.g. file not found, not readable etc.)
    */
   @ReactMethod
   public void getBase64ForTag(String uri, Callback success, Callback error) {
-    new GetBase64Task(getReactApplicationContext(), uri, success, error)
-        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    new GetBase64Task(getReactApplicationContext(), uri, null, success, error)
+        .execute(CameraRollExecutors.IO);
+  }
+
+  /**
+   * Like {@link #getBase64ForTag}, with options.
+   *
+   * @param options a map containing the following keys:
+   *        <ul>
+   *          <li>requestId (optional): an id to pass to {@link #cancel}</li>
+   *          <li>
+   *            offset, length (optional): only encode this range of bytes of the image, e.g. to
+   *            upload it in parts
+   *          </li>
+   *          <li>
+   *            stream (optional): instead of passing the whole string to {@code success}, send it
+   *            in {@code ImageStoreBase64Chunk} events of {@code {requestId, sequence, data}},
+   *            which concatenate to the base64 of the image (without line breaks), followed by
+   *            {@code {requestId, sequence, done: true, totalBytes}}; {@code success} is then
+   *            invoked without arguments. Requires a requestId.
+   *          </li>
+   *          <li>
+   *            chunkSize (optional): the number of image bytes per event when streaming, 192 KiB
+   *            by default; rounded down to a multiple of 3 so that chunks can be concatenated
+   *          </li>
+   *          <li>
+   *            maxWidth, maxHeight, format, quality (optional): instead of the original bytes,
+   *            encode the image scaled down to fit in {@code maxWidth x maxHeight} pixels (after
+   *            applying its EXIF rotation), as 'jpeg' (the default), 'png' or 'webp' with a
+   *            {@code quality} from 0 to 1 (0.9 by default). Cannot be combined with a range or
+   *            streaming.
+   *          </li>
+   *        </ul>
+   */
+  @ReactMethod
+  public void getBase64ForTagWithOptions(
+      String uri,
+      ReadableMap options,
+      Callback success,
+      Callback error) {
+    String requestId = options.hasKey("requestId") ? options.getString("requestId") : null;
+    GetBase64Task task =
+        new GetBase64Task(getReactApplicationContext(), uri, requestId, success, error);
+    boolean hasRange = options.hasKey("offset") || options.hasKey("length");
+    boolean stream = options.hasKey("stream") && options.getBoolean("stream");
+    ScaleOptions scaleOptions = ScaleOptions.fromOptions(options);
+    if (scaleOptions != null) {
+      if (hasRange || stream) {
+        throw new JSApplicationIllegalArgumentException(
+            "maxWidth, maxHeight, format and quality cannot be combined with a range or stream");
+      }
+      task.setScaled(scaleOptions);
+      // Decoding and encoding are CPU bound, unlike copying bytes.
+      task.execute(CameraRollExecutors.CODEC);
+      return;
+    }
+    if (hasRange) {
+      long offset = options.hasKey("offset") ? (long) options.getDouble("offset") : 0;
+      long length = options.hasKey("length") ? (long) options.getDouble("length") : -1;
+      if (offset < 0 || (options.hasKey("length") && length < 0)) {
+        throw new JSApplicationIllegalArgumentException("offset and length must not be negative");
+      }
+      task.setRange(offset, length);
+    }
+    if (stream) {
+      if (requestId == null) {
+        throw new JSApplicationIllegalArgumentException("requestId is required to stream");
+      }
+      int chunkSize =
+          options.hasKey("chunkSize") ? options.getInt("chunkSize") : DEFAULT_STREAM_CHUNK_SIZE;
+      // Every chunk but the last must encode to whole base64 quanta, without padding.
+      chunkSize -= chunkSize % 3;
+      if (chunkSize <= 0) {
+        throw new JSApplicationIllegalArgumentException("chunkSize must be at least 3");
+      }
+      task.setChunkSize(chunkSize);
+    }
+    task.execute(CameraRollExecutors.IO);
+  }
+
+  /**
+   * Calculate the base64 representation of several images, a few at a time. Each result is sent as
+   * soon as it is ready, in an {@code ImageStoreBase64Result} event of
+   * {@code {requestId, index, completed, total, base64}}, or {@code error} instead of
+   * {@code base64} if that image failed; a failure doesn't stop the other images.
+   *
+   * @param uris the URIs or tags of the images, as for {@link #getBase64ForTag}
+   * @param options a map containing the following keys:
+   *        <ul>
+   *          <li>requestId: an id to tell the events apart, and to pass to {@link #cancel}</li>
+   *          <li>
+   *            concurrency (optional): how many images to encode at once, 2 by default. It can't
+   *            exceed the threads that encode images, which are shared with the other calls of
+   *            this module: 2 of them, or 1 when scaling on a single core device.
+   *          </li>
+   *          <li>
+   *            maxTotalBytes (optional): how much memory the images being encoded may need at
+   *            once, an eighth of the heap by default. It is estimated from the size of the
+   *            image, or, when scaling, from the bitmaps it is decoded and scaled to. Images wait
+   *            for others to complete to stay below it; an image that alone needs more fails, and
+   *            one whose size can't be determined runs alone.
+   *          </li>
+   *          <li>
+   *            maxWidth, maxHeight, format, quality (optional): scale and compress the images
+   *            again, as for {@link #getBase64ForTagWithOptions}
+   *          </li>
+   *        </ul>
+   * @param success callback to be invoked with {@code {total, failed}} once all images completed
+   * @param error callback to be invoked if the request was cancelled
+   */
+  @ReactMethod
+  public void getBase64ForTags(
+      ReadableArray uris,
+      ReadableMap options,
+      Callback success,
+      Callback error) {
+    if (!options.hasKey("requestId")) {
+      throw new JSApplicationIllegalArgumentException("requestId is required");
+    }
+    int concurrency =
+        options.hasKey("concurrency") ? options.getInt("concurrency") : DEFAULT_BATCH_CONCURRENCY;
+    if (concurrency <= 0) {
+      throw new JSApplicationIllegalArgumentException("concurrency must be at least 1");
+    }
+    ScaleOptions scaleOptions = ScaleOptions.fromOptions(options);
+    // More would only queue images on the executor, holding on to their share of maxTotalBytes.
+    concurrency = Math.min(concurrency, getItemExecutor(scaleOptions).getMaximumPoolSize());
+    long maxTotalBytes = options.hasKey("maxTotalBytes")
+        ? (long) options.getDouble("maxTotalBytes")
+        : DEFAULT_BATCH_MAX_TOTAL_BYTES;
+    if (maxTotalBytes <= 0) {
+      throw new JSApplicationIllegalArgumentException("maxTotalBytes must be positive");
+    }
+    List<String> uriList = new ArrayList<>(uris.size());
+    for (int i = 0; i < uris.size(); i++) {
+      uriList.add(uris.getString(i));
+    }
+    new GetBase64ManyTask(
+            getReactApplicationContext(),
+            uriList,
+            options.getString("requestId"),
+            concurrency,
+            maxTotalBytes,
+            scaleOptions,
+            success,
+            error)
+        .execute(CameraRollExecutors.IO);
+  }
+
+  /**
+   * @return the executor that encodes the images of {@link #getBase64ForTags}
+   */
+  private static ThreadPoolExecutor getItemExecutor(@Nullable ScaleOptions scaleOptions) {
+    // Decoding and encoding are CPU bound, unlike copying bytes.
+    return scaleOptions != null ? CameraRollExecutors.CODEC : CameraRollExecutors.IO;
   }
 
-  private class GetBase64Task extends GuardedAsyncTask<Void, Void> {
+  /**
+   * Cancel a call to {@link #getBase64ForTagWithOptions} or {@link #getBase64ForTags} that was made
+   * with the given {@code requestId}. Its error callback is invoked, unless it had already
+   * completed.
+   */
+  @ReactMethod
+  public void cancel(String requestId) {
+    CancellableTask.cancel(NAME, requestId);
+  }
+
+  /**
+   * How to scale and compress an image again, as given by the maxWidth, maxHeight, format and
+   * quality options of {@link #getBase64ForTagWithOptions}.
+   */
+  private static class ScaleOptions {
+    final int maxWidth;
+    final int maxHeight;
+    final Bitmap.CompressFormat format;
+    final int quality;
+
+    private ScaleOptions(int maxWidth, int maxHeight, Bitmap.CompressFormat format, int quality) {
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      this.format = format;
+      this.quality = quality;
+    }
+
+    /**
+     * @return the scale options, or {@code null} if {@code options} has none, i.e. the original
+     *         bytes should be encoded
+     */
+    static @Nullable ScaleOptions fromOptions(ReadableMap options) {
+      if (!options.hasKey("maxWidth")
+          && !options.hasKey("maxHeight")
+          && !options.hasKey("format")
+          && !options.hasKey("quality")) {
+        return null;
+      }
+      int maxWidth = options.hasKey("maxWidth") ? options.getInt("maxWidth") : 0;
+      int maxHeight = options.hasKey("maxHeight") ? options.getInt("maxHeight") : 0;
+      if (maxWidth < 0 || maxHeight < 0) {
+        throw new JSApplicationIllegalArgumentException(
+            "maxWidth and maxHeight must not be negative");
+      }
+      double quality = options.hasKey("quality") ? options.getDouble("quality") : DEFAULT_QUALITY;
+      if (quality < 0 || quality > 1) {
+        throw new JSApplicationIllegalArgumentException("quality must be between 0 and 1");
+      }
+      return new ScaleOptions(
+          maxWidth,
+          maxHeight,
+          getCompressFormat(options.hasKey("format") ? options.getString("format") : FORMAT_JPEG),
+          (int) Math.round(quality * 100));
+    }
+
+    /**
+     * @param bounds the decoded bounds of the image
+     * @param rotation the clockwise rotation of the image, since maxWidth and maxHeight apply to
+     *        the image as displayed
+     * @return the width to scale the image to, before rotating it
+     */
+    int getTargetWidth(BitmapFactory.Options bounds, int rotation) {
+      return Math.max(1, Math.round(bounds.outWidth * getScale(bounds, rotation)));
+    }
+
+    /**
+     * @see #getTargetWidth
+     */
+    int getTargetHeight(BitmapFactory.Options bounds, int rotation) {
+      return Math.max(1, Math.round(bounds.outHeight * getScale(bounds, rotation)));
+    }
+
+    private float getScale(BitmapFactory.Options bounds, int rotation) {
+      boolean rotated = rotation % 180 != 0;
+      int displayWidth = rotated ? bounds.outHeight : bounds.outWidth;
+      int displayHeight = rotated ? bounds.outWidth : bounds.outHeight;
+      float scale = 1;
+      if (maxWidth > 0) {
+        scale = Math.min(scale, maxWidth / (float) displayWidth);
+      }
+      if (maxHeight > 0) {
+        scale = Math.min(scale, maxHeight / (float) displayHeight);
+      }
+      return scale;
+    }
+  }
+
+  private class GetBase64Task extends CancellableTask {
     private final String mUri;
+    private final @Nullable String mRequestId;
     private final Callback mSuccess;
     private final Callback mError;
+    private long mOffset = 0;
+    private long mLength = -1;
+    private int mChunkSize = 0;
+    private @Nullable ScaleOptions mScaleOptions;
 
     private GetBase64Task(
         ReactContext reactContext,
         String uri,
+        @Nullable String requestId,
         Callback success,
         Callback error) {
-      super(reactContext);
+      super(reactContext, NAME, requestId);
       mUri = uri;
+      mRequestId = requestId;
       mSuccess = success;
       mError = error;
     }
 
+    /**
+     * Only encode {@code length} bytes (all of them if negative), starting at {@code offset}.
+     */
+    public void setRange(long offset, long length) {
+      mOffset = offset;
+      mLength = length;
+    }
+
+    /**
+     * Send the result in events of the base64 of {@code chunkSize} bytes, which must be a multiple
+     * of 3, instead of passing it to the success callback.
+     */
+    public void setChunkSize(int chunkSize) {
+      mChunkSize = chunkSize;
+    }
+
+    /**
+     * Encode the image decoded, scaled down to fit in {@code maxWidth x maxHeight} (unbounded if 0)
+     * and compressed again, instead of its bytes.
+     */
+    public void setScaled(ScaleOptions scaleOptions) {
+      mScaleOptions = scaleOptions;
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mError.invoke("Reading the image was cancelled");
+    }
+
     @Override
     protected void doInBackgroundGuarded(Void... params) {
+      if (mScaleOptions != null) {
+        encodeScaled(mScaleOptions);
+        return;
+      }
+      ContentResolver contentResolver = getReactApplicationContext().getContentResolver();
+      AssetFileDescriptor descriptor = null;
+      InputStream is = null;
+      long totalBytesRead = 0;
+      long encodeStart = PerformanceStats.start(PerformanceStats.ENCODE);
       try {
-        ContentResolver contentResolver = getReactApplicationContext().getContentResolver();
-        Uri uri = Uri.parse(mUri);
-        InputStream is = contentResolver.openInputStream(uri);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // Read before the image, see ImageStore#putBase64.
+        long lastModified = getLastModified(mUri);
+        long size;
+        if (ImageStore.isTag(mUri)) {
+          byte[] image = ImageStore.getImage(mUri);
+          if (image == null) {
+            throw new FileNotFoundException("No image in the store for " + mUri);
+          }
+          is = new ByteArrayInputStream(image);
+          size = image.length;
+        } else {
+          // Opened as a descriptor, rather than a stream, to know the size up front.
+          descriptor = contentResolver.openAssetFileDescriptor(Uri.parse(mUri), "r");
+          if (descriptor == null) {
+            throw new FileNotFoundException("Could not open " + mUri);
+          }
+          is = descriptor.createInputStream();
+          size = descriptor.getLength();
+        }
+        // Only whole images are cached, they are what gets asked for repeatedly, and only if it
+        // can be told when they change.
+        boolean cacheable =
+            mChunkSize == 0 && mOffset == 0 && mLength < 0 && size >= 0 && lastModified >= 0;
+        if (cacheable) {
+          String cached = ImageStore.getBase64(mUri, size, lastModified);
+          if (cached != null) {
+            if (settle()) {
+              mSuccess.invoke(cached);
+            }
+            return;
+          }
+        }
+
+        skipFully(is, mOffset);
+        long limit = mLength >= 0 ? mLength : Long.MAX_VALUE;
+        long expectedBytes = size >= 0 ? Math.min(limit, Math.max(0, size - mOffset)) : -1;
+
+        if (mChunkSize > 0) {
+          totalBytesRead = streamChunks(is, limit);
+          if (settle()) {
+            WritableMap done = new WritableNativeMap();
+            done.putString("requestId", mRequestId);
+            done.putInt("sequence", getChunkCount(totalBytesRead));
+            done.putBoolean("done", true);
+            done.putDouble("totalBytes", totalBytesRead);
+            emit(done);
+            mSuccess.invoke();
+          }
+          return;
+        }
+
+        // Size the buffer for the whole result, so that it never has to grow (and be copied).
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+            expectedBytes >= 0 ? getEncodedSize(expectedBytes) : BUFFER_SIZE);
         Base64OutputStream b64os = new Base64OutputStream(baos, Base64.DEFAULT);
         byte[] buffer = new byte[BUFFER_SIZE];
-        int bytesRead;
+        while (totalBytesRead < limit) {
+          int bytesRead =
+              is.read(buffer, 0, (int) Math.min(buffer.length, limit - totalBytesRead));
+          if (bytesRead < 0) {
+            break;
+          }
+          getCancellationSignal().throwIfCanceled();
+          b64os.write(buffer, 0, bytesRead);
+          totalBytesRead += bytesRead;
+        }
+        // Flushes the last, partial, group of bytes to baos.
+        b64os.close();
+        String result = baos.toString();
+        if (cacheable) {
+          ImageStore.putBase64(mUri, size, lastModified, result);
+        }
+        if (settle()) {
+          mSuccess.invoke(result);
+        }
+      } catch (IOException e) {
+        if (settle()) {
+          mError.invoke(e.getMessage());
+        }
+      } catch (OperationCanceledException e) {
+        // Reported by onRequestCancelled.
+      } finally {
+        PerformanceStats.count(PerformanceStats.BYTES, totalBytesRead);
+        PerformanceStats.end(PerformanceStats.ENCODE, encodeStart);
+        if (is != null) {
+          closeQuietly(is);
+        }
+        if (descriptor != null) {
+          // AssetFileDescriptor only implements Closeable from API 19.
+          try {
+            descriptor.close();
+          } catch (IOException e) {
+            // shhh
+          }
+        }
+      }
+    }
+
+    private void encodeScaled(ScaleOptions scaleOptions) {
+      try {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        getCancellationSignal().setOnCancelListener(
+            new CancellationSignal.OnCancelListener() {
+              @Override
+              public void onCancel() {
+                options.requestCancelDecode();
+              }
+            });
+
+        options.inJustDecodeBounds = true;
+        decode(mUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+          throw new IOException("Cannot decode image: " + mUri);
+        }
+        int rotation = getRotation(mUri, options);
+        int targetWidth = scaleOptions.getTargetWidth(options, rotation);
+        int targetHeight = scaleOptions.getTargetHeight(options, rotation);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageEditingManager.getDecodeSampleSize(
+            options.outWidth, options.outHeight, targetWidth, targetHeight);
+        Bitmap bitmap;
+        long decodeStart = PerformanceStats.start(PerformanceStats.DECODE);
         try {
-          while ((bytesRead = is.read(buffer)) > -1) {
-            b64os.write(buffer, 0, bytesRead);
+          bitmap = decode(mUri, options);
+        } finally {
+          PerformanceStats.end(PerformanceStats.DECODE, decodeStart);
+        }
+        getCancellationSignal().throwIfCanceled();
+        if (bitmap == null) {
+          throw new IOException("Cannot decode image: " + mUri);
+        }
+
+        // The sample size only gets within a factor of 2 of the target, scale the rest of the way.
+        if (bitmap.getWidth() != targetWidth || bitmap.getHeight() != targetHeight
+            || rotation != 0) {
+          Matrix matrix = new Matrix();
+          matrix.setScale(
+              targetWidth / (float) bitmap.getWidth(),
+              targetHeight / (float) bitmap.getHeight());
+          matrix.postRotate(rotation);
+          Bitmap transformed = Bitmap.createBitmap(
+              bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+          if (transformed != bitmap) {
+            bitmap.recycle();
+            bitmap = transformed;
           }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+        long encodeStart = PerformanceStats.start(PerformanceStats.ENCODE);
+        try {
+          // The encoder writes straight into the base64 encoder, the compressed image is never
+          // held in memory on its own.
+          Base64OutputStream b64os = new Base64OutputStream(baos, Base64.DEFAULT);
+          bitmap.compress(scaleOptions.format, scaleOptions.quality, b64os);
+          b64os.close();
+        } finally {
+          PerformanceStats.end(PerformanceStats.ENCODE, encodeStart);
+          bitmap.recycle();
+        }
+        PerformanceStats.count(PerformanceStats.BYTES, baos.size());
+        if (settle()) {
           mSuccess.invoke(baos.toString());
-        } catch (IOException e) {
+        }
+      } catch (IOException e) {
+        if (settle()) {
           mError.invoke(e.getMessage());
-        } finally {
-          closeQuietly(is);
-          closeQuietly(b64os); // this also closes baos
         }
-      } catch (FileNotFoundException e) {
-        mError.invoke(e.getMessage());
+      } catch (OperationCanceledException e) {
+        // Reported by onRequestCancelled.
+      }
+    }
+
+    /**
+     * Send up to {@code limit} bytes of {@code is} in {@code ImageStoreBase64Chunk} events. Only
+     * one chunk is held in memory at a time.
+     *
+     * @return the number of bytes sent
+     */
+    private long streamChunks(InputStream is, long limit) throws IOException {
+      byte[] buffer = new byte[mChunkSize];
+      long totalBytesRead = 0;
+      int sequence = 0;
+      while (totalBytesRead < limit) {
+        int requested = (int) Math.min(buffer.length, limit - totalBytesRead);
+        int bytesRead = readFully(is, buffer, requested);
+        getCancellationSignal().throwIfCanceled();
+        if (bytesRead == 0) {
+          break;
+        }
+        WritableMap chunk = new WritableNativeMap();
+        chunk.putString("requestId", mRequestId);
+        chunk.putInt("sequence", sequence++);
+        chunk.putString("data", Base64.encodeToString(buffer, 0, bytesRead, Base64.NO_WRAP));
+        emit(chunk);
+        totalBytesRead += bytesRead;
+        if (bytesRead < requested) {
+          break;
+        }
+      }
+      return totalBytesRead;
+    }
+
+    private int getChunkCount(long bytes) {
+      return (int) ((bytes + mChunkSize - 1) / mChunkSize);
+    }
+
+    private void emit(WritableMap event) {
+      getReactApplicationContext()
+          .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+          .emit(CHUNK_EVENT, event);
+    }
+  }
+
+  /**
+   * @return when the image was last modified, in milliseconds since the epoch; 0 for tags, whose
+   *         images can't change; -1 if unknown, e.g. for content providers other than the media
+   *         store
+   */
+  private long getLastModified(String uri) {
+    if (ImageStore.isTag(uri)) {
+      return 0;
+    }
+    Uri parsedUri = Uri.parse(uri);
+    if (ContentResolver.SCHEME_FILE.equals(parsedUri.getScheme())) {
+      long lastModified = new File(parsedUri.getPath()).lastModified();
+      return lastModified > 0 ? lastModified : -1;
+    }
+    if (!ContentResolver.SCHEME_CONTENT.equals(parsedUri.getScheme())
+        || !MediaStore.AUTHORITY.equals(parsedUri.getAuthority())) {
+      return -1;
+    }
+    Cursor cursor;
+    try {
+      cursor = getReactApplicationContext().getContentResolver().query(
+          parsedUri,
+          new String[] { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED },
+          null,
+          null,
+          null);
+    } catch (IllegalArgumentException | SecurityException e) {
+      return -1;
+    }
+    if (cursor == null) {
+      return -1;
+    }
+    try {
+      if (!cursor.moveToFirst()) {
+        return -1;
+      }
+      // The file is more precise, and is rewritten by edits that the media store doesn't see
+      // until it scans it again.
+      String path = cursor.getString(0);
+      long lastModified = path != null ? new File(path).lastModified() : 0;
+      if (lastModified > 0) {
+        return lastModified;
+      }
+      return cursor.isNull(1) ? -1 : cursor.getLong(1) * 1000;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Decode the image, or only its bounds, with {@code options}.
+   *
+   * @param uri the URI or tag of the image
+   * @return the bitmap, or {@code null} if it could not be decoded or only bounds were decoded
+   */
+  private @Nullable Bitmap decode(String uri, BitmapFactory.Options options) throws IOException {
+    if (ImageStore.isTag(uri)) {
+      byte[] image = ImageStore.getImage(uri);
+      if (image == null) {
+        throw new FileNotFoundException("No image in the store for " + uri);
+      }
+      return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+    }
+    InputStream is = getReactApplicationContext()
+        .getContentResolver()
+        .openInputStream(Uri.parse(uri));
+    if (is == null) {
+      throw new FileNotFoundException("Could not open " + uri);
+    }
+    try {
+      return BitmapFactory.decodeStream(is, null, options);
+    } finally {
+      closeQuietly(is);
+    }
+  }
+
+  /**
+   * @param options the decoded bounds of the image
+   * @return the clockwise rotation of the image from its EXIF orientation, 0 if it is not a JPEG
+   *         or has no file
+   */
+  private int getRotation(String uri, BitmapFactory.Options options) {
+    if (!"image/jpeg".equals(options.outMimeType) || ImageStore.isTag(uri)) {
+      return 0;
+    }
+    File file = ImageEditingManager.getFileFromUri(getReactApplicationContext(), Uri.parse(uri));
+    return file != null ? CameraRollManager.getExifRotation(file) : 0;
+  }
+
+  /**
+   * Runs a {@link GetBase64Task} per image, starting the next one as one completes, as long as
+   * fewer than {@code concurrency} run and their estimated memory fits in {@code maxTotalBytes}.
+   * Images are started in order, so a large one waits rather than be overtaken indefinitely.
+   */
+  private class GetBase64ManyTask extends CancellableTask {
+    private final List<String> mUris;
+    private final String mRequestId;
+    private final int mConcurrency;
+    private final long mMaxTotalBytes;
+    private final @Nullable ScaleOptions mScaleOptions;
+    private final Callback mSuccess;
+    private final Callback mError;
+
+    // Guarded by this.
+    // The estimated memory needed to encode each image, all of maxTotalBytes if unknown, or
+    // NOT_ESTIMATED until it is about to start.
+    private final long[] mEstimatedBytes;
+    // Whether the next image is being estimated, by a thread that then tries to start it.
+    private boolean mEstimating;
+    private final Set<Integer> mRunning = new HashSet<>();
+    // The tasks of the running images, once started. Guarded by this.
+    private final Map<Integer, GetBase64Task> mTasks = new HashMap<>();
+    private int mNext;
+    private long mReservedBytes;
+    private int mCompleted;
+    private int mFailed;
+
+    private GetBase64ManyTask(
+        ReactContext reactContext,
+        List<String> uris,
+        String requestId,
+        int concurrency,
+        long maxTotalBytes,
+        @Nullable ScaleOptions scaleOptions,
+        Callback success,
+        Callback error) {
+      super(reactContext, NAME, requestId);
+      mUris = uris;
+      mRequestId = requestId;
+      mConcurrency = concurrency;
+      mMaxTotalBytes = maxTotalBytes;
+      mScaleOptions = scaleOptions;
+      mSuccess = success;
+      mError = error;
+      mEstimatedBytes = new long[uris.size()];
+      Arrays.fill(mEstimatedBytes, NOT_ESTIMATED);
+    }
+
+    @Override
+    protected void onRequestCancelled() {
+      mError.invoke("Reading the images was cancelled");
+    }
+
+    @Override
+    protected void doInBackgroundGuarded(Void... params) {
+      // Finished by the last image, on another thread.
+      settleLater();
+      getCancellationSignal().setOnCancelListener(new CancellationSignal.OnCancelListener() {
+        @Override
+        public void onCancel() {
+          List<GetBase64Task> running;
+          synchronized (GetBase64ManyTask.this) {
+            running = new ArrayList<>(mTasks.values());
+          }
+          for (GetBase64Task task : running) {
+            task.cancelRequest();
+          }
+          finishIfDone();
+        }
+      });
+      startQueued();
+      finishIfDone();
+    }
+
+    /**
+     * @return the memory needed to encode the bytes of the image: the base64 is written to a
+     *         buffer with a byte per character, then copied to a string with two; -1 if unknown
+     */
+    private long estimateBytes(String uri) {
+      long size = getSourceSize(uri);
+      return size >= 0 ? getEncodedSize(size) * 3L : -1;
+    }
+
+    /**
+     * @return the memory needed to decode, scale and encode the image: the sampled bitmap, the
+     *         scaled one, and the base64 of the result, assuming it compresses to at most a byte
+     *         per pixel; -1 if unknown
+     */
+    private long estimateScaledBytes(String uri, ScaleOptions scaleOptions) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      try {
+        decode(uri, options);
+      } catch (IOException | SecurityException e) {
+        // The image fails with a proper error once it is encoded.
+        return -1;
+      }
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        return -1;
+      }
+      int rotation = getRotation(uri, options);
+      long targetWidth = scaleOptions.getTargetWidth(options, rotation);
+      long targetHeight = scaleOptions.getTargetHeight(options, rotation);
+      int sampleSize = ImageEditingManager.getDecodeSampleSize(
+          options.outWidth, options.outHeight, (int) targetWidth, (int) targetHeight);
+      long sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+      long sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+      return sampledWidth * sampledHeight * 4
+          + targetWidth * targetHeight * 4
+          + getEncodedSize(targetWidth * targetHeight) * 3L;
+    }
+
+    /**
+     * @return the size of the image in bytes, or -1 if unknown, e.g. because it can't be opened
+     */
+    private long getSourceSize(String uri) {
+      if (ImageStore.isTag(uri)) {
+        byte[] image = ImageStore.getImage(uri);
+        return image != null ? image.length : -1;
+      }
+      AssetFileDescriptor descriptor = null;
+      try {
+        descriptor = getReactApplicationContext()
+            .getContentResolver()
+            .openAssetFileDescriptor(Uri.parse(uri), "r");
+        // Negative, i.e. unknown, for some content providers.
+        return descriptor != null ? descriptor.getLength() : -1;
+      } catch (FileNotFoundException | SecurityException e) {
+        // The image fails with a proper error once it is encoded.
+        return -1;
+      } finally {
+        if (descriptor != null) {
+          try {
+            descriptor.close();
+          } catch (IOException e) {
+            // shhh
+          }
+        }
+      }
+    }
+
+    private void startQueued() {
+      while (true) {
+        int index;
+        boolean estimate = false;
+        boolean tooLarge = false;
+        synchronized (this) {
+          if (mNext >= mUris.size() || getCancellationSignal().isCanceled() || mEstimating) {
+            return;
+          }
+          index = mNext;
+          long estimatedBytes = mEstimatedBytes[index];
+          if (estimatedBytes == NOT_ESTIMATED) {
+            // Images are only estimated once they could start, since estimating reads them.
+            if (mRunning.size() >= mConcurrency) {
+              return;
+            }
+            mEstimating = true;
+            estimate = true;
+          } else if (estimatedBytes > mMaxTotalBytes) {
+            tooLarge = true;
+            mNext++;
+          } else if (mRunning.size() >= mConcurrency
+              || mReservedBytes + estimatedBytes > mMaxTotalBytes) {
+            return;
+          } else {
+            mRunning.add(index);
+            mReservedBytes += estimatedBytes;
+            mNext++;
+          }
+        }
+        if (estimate) {
+          long estimatedBytes = mScaleOptions != null
+              ? estimateScaledBytes(mUris.get(index), mScaleOptions)
+              : estimateBytes(mUris.get(index));
+          synchronized (this) {
+            mEstimatedBytes[index] = estimatedBytes >= 0 ? estimatedBytes : mMaxTotalBytes;
+            mEstimating = false;
+          }
+        } else if (tooLarge) {
+          complete(index, null, "The image needs more memory than maxTotalBytes");
+        } else {
+          start(index);
+        }
+      }
+    }
+
+    private void start(final int index) {
+      // Without a request id, the task is only cancellable by this batch, not from JS.
+      GetBase64Task task = new GetBase64Task(
+          getReactApplicationContext(),
+          mUris.get(index),
+          null,
+          new Callback() {
+            @Override
+            public void invoke(Object... args) {
+              onItemCompleted(index, (String) args[0], null);
+            }
+          },
+          new Callback() {
+            @Override
+            public void invoke(Object... args) {
+              onItemCompleted(index, null, (String) args[0]);
+            }
+          });
+      if (mScaleOptions != null) {
+        task.setScaled(mScaleOptions);
+      }
+      synchronized (this) {
+        mTasks.put(index, task);
+      }
+      task.execute(getItemExecutor(mScaleOptions));
+      // The batch may have been cancelled before the task could be cancelled with the others.
+      if (getCancellationSignal().isCanceled()) {
+        task.cancelRequest();
+      }
+    }
+
+    private void onItemCompleted(int index, @Nullable String base64, @Nullable String error) {
+      complete(index, base64, error);
+      synchronized (this) {
+        mRunning.remove(index);
+        mTasks.remove(index);
+        mReservedBytes -= mEstimatedBytes[index];
+      }
+      startQueued();
+      finishIfDone();
+    }
+
+    private void complete(int index, @Nullable String base64, @Nullable String error) {
+      int completed;
+      synchronized (this) {
+        completed = ++mCompleted;
+        if (error != null) {
+          mFailed++;
+        }
+      }
+      if (getCancellationSignal().isCanceled()) {
+        return;
+      }
+      WritableMap result = new WritableNativeMap();
+      result.putString("requestId", mRequestId);
+      result.putInt("index", index);
+      result.putInt("completed", completed);
+      result.putInt("total", mUris.size());
+      if (error != null) {
+        result.putString("error", error);
+      } else {
+        result.putString("base64", base64);
+      }
+      getReactApplicationContext()
+          .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+          .emit(RESULT_EVENT, result);
+    }
+
+    /**
+     * Report the batch once all images completed, or, if it was cancelled, once none is running.
+     */
+    private void finishIfDone() {
+      int failed;
+      synchronized (this) {
+        boolean cancelled = getCancellationSignal().isCanceled();
+        if (mCompleted < mUris.size() && !(cancelled && mRunning.isEmpty())) {
+          return;
+        }
+        failed = mFailed;
+      }
+      // Reports the cancellation instead, if the batch was cancelled.
+      if (settle()) {
+        WritableMap summary = new WritableNativeMap();
+        summary.putInt("total", mUris.size());
+        summary.putInt("failed", failed);
+        mSuccess.invoke(summary);
+      }
+    }
+  }
+
+  private static Bitmap.CompressFormat getCompressFormat(String format) {
+    if (FORMAT_JPEG.equals(format)) {
+      return Bitmap.CompressFormat.JPEG;
+    } else if (FORMAT_PNG.equals(format)) {
+      return Bitmap.CompressFormat.PNG;
+    } else if (FORMAT_WEBP.equals(format)) {
+      return Bitmap.CompressFormat.WEBP;
+    }
+    throw new JSApplicationIllegalArgumentException("Unknown format: " + format);
+  }
+
+  /**
+   * @return the length of the {@link Base64#DEFAULT} encoding of {@code bytes} bytes, which has a
+   *         line break every 76 characters and at the end
+   */
+  private static int getEncodedSize(long bytes) {
+    long chars = (bytes + 2) / 3 * 4;
+    return (int) Math.min(Integer.MAX_VALUE - 8, chars + chars / 76 + 1);
+  }
+
+  /**
+   * Read until {@code buffer} holds {@code count} bytes or the end of the stream is reached.
+   *
+   * @return the number of bytes read
+   */
+  private static int readFully(InputStream is, byte[] buffer, int count) throws IOException {
+    int total = 0;
+    while (total < count) {
+      int bytesRead = is.read(buffer, total, count - total);
+      if (bytesRead < 0) {
+        break;
+      }
+      total += bytesRead;
+    }
+    return total;
+  }
+
+  private static void skipFully(InputStream is, long count) throws IOException {
+    byte[] discard = null;
+    while (count > 0) {
+      long skipped = is.skip(count);
+      if (skipped <= 0) {
+        // Not every stream can skip, read instead; this also detects the end of the stream.
+        if (discard == null) {
+          discard = new byte[BUFFER_SIZE];
+        }
+        int bytesRead = is.read(discard, 0, (int) Math.min(discard.length, count));
+        if (bytesRead < 0) {
+          return;
+        }
+        skipped = bytesRead;
       }
+      count -= skipped;
     }
   }
 
@@ -0,0 +1,400 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Video;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+/**
+ * A local SQLite copy of the metadata of every photo and video in the media store, so that
+ * {@link CameraRollManager} can answer queries without going through the content provider.
+ *
+ * The table uses the media store's column names, so the same projections, selections and sort
+ * orders work against either. It is kept up to date incrementally: rows modified since the last
+ * sync started, or with a higher {@code _id} than any that was seen, are upserted, and rows that
+ * were deleted from the media store are only looked for when the counts no longer match.
+ */
+final class MediaIndex extends SQLiteOpenHelper {
+
+  private static final String DATABASE_NAME = "RNCameraRollMediaIndex.db";
+  private static final int DATABASE_VERSION = 2;
+
+  static final String TABLE_ASSETS = "assets";
+
+  // Key-value pairs about the index itself.
+  private static final String TABLE_METADATA = "metadata";
+  private static final String COLUMN_KEY = "key";
+  private static final String COLUMN_VALUE = "value";
+  // When the last successful sync started, in seconds like date_modified.
+  private static final String KEY_LAST_SYNCED = "last_synced";
+
+  static final String[] COLUMNS = new String[] {
+          FileColumns._ID,
+          Video.Media.BUCKET_ID,
+          Video.Media.BUCKET_DISPLAY_NAME,
+          FileColumns.MIME_TYPE,
+          FileColumns.MEDIA_TYPE,
+          FileColumns.WIDTH,
+          FileColumns.HEIGHT,
+          FileColumns.DATE_MODIFIED,
+          Video.VideoColumns.DURATION,
+          MediaStore.MediaColumns.DISPLAY_NAME,
+  };
+
+  private static final String INSERT_OR_IGNORE;
+  // Binds the values of COLUMNS[1..], then _id, then COLUMNS[1..] again.
+  private static final String UPDATE_IF_CHANGED;
+
+  static {
+    StringBuilder insert = new StringBuilder("INSERT OR IGNORE INTO " + TABLE_ASSETS + " (");
+    StringBuilder values = new StringBuilder();
+    StringBuilder set = new StringBuilder();
+    StringBuilder changed = new StringBuilder();
+    for (int i = 0; i < COLUMNS.length; i++) {
+      insert.append(i == 0 ? "" : ", ").append(COLUMNS[i]);
+      values.append(i == 0 ? "?" : ", ?");
+      if (i > 0) {
+        set.append(i == 1 ? "" : ", ").append(COLUMNS[i]).append(" = ?");
+        changed.append(i == 1 ? "" : " OR ").append(COLUMNS[i]).append(" IS NOT ?");
+      }
+    }
+    INSERT_OR_IGNORE = insert.append(") VALUES (").append(values).append(")").toString();
+    UPDATE_IF_CHANGED = "UPDATE " + TABLE_ASSETS + " SET " + set
+        + " WHERE " + FileColumns._ID + " = ? AND (" + changed + ")";
+  }
+
+  /**
+   * The ids that changed during a {@link #sync}.
+   */
+  static final class Changes {
+    final List<Long> inserted = new ArrayList<>();
+    final List<Long> updated = new ArrayList<>();
+    final List<Long> deleted = new ArrayList<>();
+
+    boolean isEmpty() {
+      return inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+    }
+  }
+
+  interface ChangeListener {
+    /**
+     * Called after a sync that changed the index, on the thread that synced.
+     */
+    void onChanges(Changes changes);
+  }
+
+  private final AtomicBoolean mStale = new AtomicBoolean(true);
+  private volatile @Nullable ChangeListener mChangeListener;
+
+  MediaIndex(Context context) {
+    super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_ASSETS + " ("
+        + FileColumns._ID + " INTEGER PRIMARY KEY, "
+        + Video.Media.BUCKET_ID + " TEXT, "
+        + Video.Media.BUCKET_DISPLAY_NAME + " TEXT, "
+        + FileColumns.MIME_TYPE + " TEXT, "
+        + FileColumns.MEDIA_TYPE + " INTEGER, "
+        + FileColumns.WIDTH + " INTEGER, "
+        + FileColumns.HEIGHT + " INTEGER, "
+        + FileColumns.DATE_MODIFIED + " INTEGER, "
+        + Video.VideoColumns.DURATION + " INTEGER, "
+        + MediaStore.MediaColumns.DISPLAY_NAME + " TEXT)");
+    // Cover the keyset order used for paging, overall and per album.
+    db.execSQL("CREATE INDEX " + TABLE_ASSETS + "_date ON " + TABLE_ASSETS
+        + " (" + FileColumns.DATE_MODIFIED + ", " + FileColumns._ID + ")");
+    db.execSQL("CREATE INDEX " + TABLE_ASSETS + "_bucket_date ON " + TABLE_ASSETS
+        + " (" + Video.Media.BUCKET_ID + ", " + FileColumns.DATE_MODIFIED + ", "
+        + FileColumns._ID + ")");
+    db.execSQL("CREATE TABLE " + TABLE_METADATA + " ("
+        + COLUMN_KEY + " TEXT PRIMARY KEY, "
+        + COLUMN_VALUE + " INTEGER)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // It's only a cache, rebuild it from the media store.
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_ASSETS);
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_METADATA);
+    onCreate(db);
+  }
+
+  /**
+   * Set the listener that is told about every change found by a sync, whichever caller triggered
+   * it.
+   */
+  void setChangeListener(@Nullable ChangeListener changeListener) {
+    mChangeListener = changeListener;
+  }
+
+  /**
+   * Mark the index as out of date, e.g. because the media store changed. The next
+   * {@link #syncIfStale} will catch up.
+   */
+  void invalidate() {
+    mStale.set(true);
+  }
+
+  /**
+   * Sync with the media store if anything may have changed since the last sync.
+   */
+  void syncIfStale(ContentResolver resolver) {
+    if (mStale.get()) {
+      sync(resolver);
+    }
+  }
+
+  /**
+   * Bring the index up to date with the media store.
+   *
+   * @return the ids that were inserted, updated or deleted
+   */
+  synchronized Changes sync(ContentResolver resolver) {
+    // Changes that are notified while syncing must cause another sync.
+    mStale.set(false);
+    Changes changes = new Changes();
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      upsertNewRows(db, resolver, changes);
+      deleteRemovedRows(db, resolver, changes);
+      db.setTransactionSuccessful();
+    } catch (RuntimeException e) {
+      mStale.set(true);
+      throw e;
+    } finally {
+      db.endTransaction();
+    }
+    ChangeListener changeListener = mChangeListener;
+    if (changeListener != null && !changes.isEmpty()) {
+      changeListener.onChanges(changes);
+    }
+    return changes;
+  }
+
+  /**
+   * Query the index, like {@link ContentResolver#query} would query the media store. Like with the
+   * media store, a LIMIT clause can be appended to {@code sortOrder}.
+   */
+  Cursor query(
+      String[] projection,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs,
+      @Nullable String sortOrder,
+      @Nullable CancellationSignal cancellationSignal) {
+    return getReadableDatabase().query(
+        false,
+        TABLE_ASSETS,
+        projection,
+        selection,
+        selectionArgs,
+        null,
+        null,
+        sortOrder,
+        null,
+        cancellationSignal);
+  }
+
+  /**
+   * Query the index with a GROUP BY clause, which the media store does not support.
+   */
+  Cursor queryGrouped(
+      String[] projection,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs,
+      String groupBy,
+      @Nullable String sortOrder) {
+    return getReadableDatabase().query(
+        TABLE_ASSETS, projection, selection, selectionArgs, groupBy, null, sortOrder);
+  }
+
+  private static void upsertNewRows(SQLiteDatabase db, ContentResolver resolver, Changes changes) {
+    long syncStart = System.currentTimeMillis() / 1000;
+    long lastId = DatabaseUtils.longForQuery(
+        db, "SELECT IFNULL(MAX(" + FileColumns._ID + "), 0) FROM " + TABLE_ASSETS, null);
+    // Not the newest date_modified in the index: a single asset dated in the future, e.g. by a
+    // camera with a wrong clock, would hide every edit until then. Clamped in case the clock was
+    // set back since.
+    long lastSynced = Math.min(getLastSynced(db), syncStart);
+
+    // New rows can have an old date_modified (e.g. imported files keep their timestamps), but
+    // they always get a higher _id. Rows modified in the second the last sync started are read
+    // again, since they may have been modified after it read them. Rows dated in the future are
+    // read every time, they are only reported if they changed.
+    Cursor cursor = resolver.query(
+        Files.getContentUri("external"),
+        COLUMNS,
+        CameraRollManager.SELECTION_IS_MEDIA + " AND (" + FileColumns.DATE_MODIFIED + " >= ? OR "
+            + FileColumns._ID + " > ?)",
+        new String[] { String.valueOf(lastSynced), String.valueOf(lastId) },
+        FileColumns._ID);
+    if (cursor == null) {
+      throw new SQLiteException("Could not query the media store");
+    }
+    SQLiteStatement insert = db.compileStatement(INSERT_OR_IGNORE);
+    SQLiteStatement update = db.compileStatement(UPDATE_IF_CHANGED);
+    try {
+      while (cursor.moveToNext()) {
+        long id = cursor.getLong(0);
+        insert.clearBindings();
+        for (int i = 0; i < COLUMNS.length; i++) {
+          bindColumn(insert, i + 1, cursor, i);
+        }
+        if (insert.executeInsert() != -1) {
+          changes.inserted.add(id);
+          continue;
+        }
+        // Rows that were read again without having changed must not be reported as updated.
+        update.clearBindings();
+        for (int i = 1; i < COLUMNS.length; i++) {
+          bindColumn(update, i, cursor, i);
+          bindColumn(update, COLUMNS.length + i, cursor, i);
+        }
+        update.bindLong(COLUMNS.length, id);
+        if (update.executeUpdateDelete() > 0) {
+          changes.updated.add(id);
+        }
+      }
+    } finally {
+      insert.close();
+      update.close();
+      cursor.close();
+    }
+    // Committed with the rows, so a failed sync is done again from the same point.
+    ContentValues lastSyncedValues = new ContentValues();
+    lastSyncedValues.put(COLUMN_KEY, KEY_LAST_SYNCED);
+    lastSyncedValues.put(COLUMN_VALUE, syncStart);
+    db.insertWithOnConflict(
+        TABLE_METADATA, null, lastSyncedValues, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  /**
+   * @return when the last successful sync started, in seconds, or 0 if there was none
+   */
+  private static long getLastSynced(SQLiteDatabase db) {
+    Cursor cursor = db.query(
+        TABLE_METADATA,
+        new String[] { COLUMN_VALUE },
+        COLUMN_KEY + " = ?",
+        new String[] { KEY_LAST_SYNCED },
+        null, null, null);
+    try {
+      return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static void bindColumn(
+      SQLiteStatement statement,
+      int index,
+      Cursor cursor,
+      int column) {
+    if (cursor.isNull(column)) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, cursor.getString(column));
+    }
+  }
+
+  private static void deleteRemovedRows(
+      SQLiteDatabase db,
+      ContentResolver resolver,
+      Changes changes) {
+    long localCount = DatabaseUtils.queryNumEntries(db, TABLE_ASSETS);
+    long mediaStoreCount = countMediaStore(resolver);
+    if (mediaStoreCount >= localCount) {
+      return;
+    }
+
+    // Walk both id lists in ascending order, anything that is only known locally was deleted.
+    Cursor mediaStoreIds = resolver.query(
+        Files.getContentUri("external"),
+        new String[] { FileColumns._ID },
+        CameraRollManager.SELECTION_IS_MEDIA,
+        null,
+        FileColumns._ID);
+    if (mediaStoreIds == null) {
+      return;
+    }
+    Cursor localIds = db.query(
+        TABLE_ASSETS,
+        new String[] { FileColumns._ID },
+        null, null, null, null,
+        FileColumns._ID);
+    try {
+      boolean hasMediaStoreId = mediaStoreIds.moveToNext();
+      while (localIds.moveToNext()) {
+        long localId = localIds.getLong(0);
+        while (hasMediaStoreId && mediaStoreIds.getLong(0) < localId) {
+          hasMediaStoreId = mediaStoreIds.moveToNext();
+        }
+        if (!hasMediaStoreId || mediaStoreIds.getLong(0) != localId) {
+          changes.deleted.add(localId);
+        }
+      }
+    } finally {
+      localIds.close();
+      mediaStoreIds.close();
+    }
+
+    List<Long> deleted = changes.deleted;
+    for (int start = 0; start < deleted.size(); start += CameraRollManager.MAX_SELECTION_ARGS) {
+      List<Long> chunk = deleted.subList(
+          start,
+          Math.min(deleted.size(), start + CameraRollManager.MAX_SELECTION_ARGS));
+      db.delete(
+          TABLE_ASSETS,
+          CameraRollManager.selectionIn(FileColumns._ID, chunk.size()),
+          CameraRollManager.toSelectionArgs(chunk));
+    }
+  }
+
+  /**
+   * @return the number of photos and videos in the media store, or -1 if it can't be counted
+   */
+  private static long countMediaStore(ContentResolver resolver) {
+    Cursor cursor;
+    try {
+      cursor = resolver.query(
+          Files.getContentUri("external"),
+          new String[] { "COUNT(*)" },
+          CameraRollManager.SELECTION_IS_MEDIA,
+          null,
+          null);
+    } catch (IllegalArgumentException | SQLiteException e) {
+      FLog.w(ReactConstants.TAG, "Could not count media store rows", e);
+      return -1;
+    }
+    if (cursor == null) {
+      return -1;
+    }
+    try {
+      return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+/**
+ * A small LRU of {@link CameraRollManager#getPhotos} pages that were fetched speculatively, so that
+ * the request for the next page of a scrolling list can be answered from memory. Pages hold the
+ * raw rows of the query, not the marshalled assets, so they are mapped like a fresh cursor would
+ * be. A page is handed out at most once, and everything is dropped when the media store changes.
+ */
+final class PageCache {
+
+  private static final int MAX_PAGES = 8;
+
+  /**
+   * A copy of the rows of a query, which can be read back as a cursor any number of times.
+   */
+  static final class Page {
+    private final String[] mColumns;
+    private final List<Object[]> mRows;
+
+    private Page(String[] columns, List<Object[]> rows) {
+      mColumns = columns;
+      mRows = rows;
+    }
+
+    static Page copyOf(Cursor cursor) {
+      List<Object[]> rows = new ArrayList<>(cursor.getCount());
+      cursor.moveToPosition(-1);
+      while (cursor.moveToNext()) {
+        rows.add(CameraRollManager.copyRow(cursor));
+      }
+      return new Page(cursor.getColumnNames(), rows);
+    }
+
+    Cursor toCursor() {
+      MatrixCursor cursor = new MatrixCursor(mColumns, mRows.size());
+      for (Object[] row : mRows) {
+        cursor.addRow(row);
+      }
+      return cursor;
+    }
+  }
+
+  private final LruCache<String, FutureTask<Page>> mPages = new LruCache<>(MAX_PAGES);
+
+  /**
+   * Start loading a page in the background, unless it is already cached or being loaded.
+   *
+   * @param key identifies the query, see {@link #take}
+   * @param loader produces the page; it runs on {@code executor}, or on the thread that takes the
+   *        page if that happens first
+   */
+  void prefetch(String key, Callable<Page> loader, Executor executor) {
+    FutureTask<Page> task = new FutureTask<>(loader);
+    synchronized (mPages) {
+      if (mPages.get(key) != null) {
+        return;
+      }
+      mPages.put(key, task);
+    }
+    executor.execute(task);
+  }
+
+  /**
+   * Remove a page from the cache and return it, waiting for it if it is still being loaded.
+   *
+   * @return the page, or {@code null} if it wasn't prefetched or could not be loaded
+   */
+  @Nullable Page take(String key) {
+    FutureTask<Page> task;
+    synchronized (mPages) {
+      task = mPages.remove(key);
+    }
+    if (task == null) {
+      return null;
+    }
+    // Load it on this thread if the executor hasn't got to it yet, this is a no-op otherwise.
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      FLog.w(ReactConstants.TAG, "Could not prefetch page", e.getCause());
+      return null;
+    }
+  }
+
+  void clear() {
+    synchronized (mPages) {
+      mPages.evictAll();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.nio.charset.Charset;
+
+import android.util.Base64;
+
+/**
+ * Keyset cursor over {@code (date_modified, _id)}: the position of the last asset of a page, in
+ * whichever order the {@link AssetFilter} sorts by, newest first by default or oldest first. It is
+ * handed to JS as an opaque token in {@code page_info.end_cursor} and passed back as
+ * {@code after}, where the filter picks the selection that continues in its order.
+ *
+ * Paging on the composite key instead of the date alone means assets that share a timestamp
+ * (burst shots, bulk imports) are neither skipped nor returned twice, and every page is a bounded
+ * seek regardless of how deep into the library it is.
+ */
+final class PageCursor {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BASE64_FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+  private static final String SEPARATOR = ":";
+
+  private final long mDateModified;
+  private final long mId;
+
+  PageCursor(long dateModified, long id) {
+    mDateModified = dateModified;
+    mId = id;
+  }
+
+  long getDateModified() {
+    return mDateModified;
+  }
+
+  long getId() {
+    return mId;
+  }
+
+  /**
+   * Parse a token previously returned by {@link #encode()}. Bare numbers, which is what older
+   * versions returned as {@code end_cursor}, are accepted as a date-only cursor.
+   *
+   * @return the cursor, or {@code null} if the token is malformed
+   */
+  static @Nullable PageCursor parse(String token) {
+    try {
+      return new PageCursor(Long.parseLong(token), 0);
+    } catch (NumberFormatException e) {
+      // Not a legacy cursor, decode it below.
+    }
+    String decoded;
+    try {
+      decoded = new String(Base64.decode(token, BASE64_FLAGS), UTF_8);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    int separator = decoded.indexOf(SEPARATOR);
+    if (separator <= 0) {
+      return null;
+    }
+    try {
+      return new PageCursor(
+          Long.parseLong(decoded.substring(0, separator)),
+          Long.parseLong(decoded.substring(separator + 1)));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  String encode() {
+    String raw = mDateModified + SEPARATOR + mId;
+    return Base64.encodeToString(raw.getBytes(UTF_8), BASE64_FLAGS);
+  }
+}
@@ -0,0 +1,230 @@
+package com.dylanvann.cameraroll;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+
+/**
+ * Timings of the phases of the work done by the modules in this package, and counts of what was
+ * processed, shared by all of them. Timings go into histograms with power of two buckets that are
+ * updated without locking, so recording is cheap enough to stay on in production.
+ *
+ * Phases can also be shown as {@link Trace} sections in systrace, when that is enabled.
+ */
+final class PerformanceStats {
+
+  static final String QUEUE_WAIT = "queueWait";
+  static final String QUERY = "query";
+  static final String CURSOR_ITERATION = "cursorIteration";
+  static final String THUMBNAIL_LOOKUP = "thumbnailLookup";
+  static final String DECODE = "decode";
+  static final String ENCODE = "encode";
+  static final String FILE_COPY = "fileCopy";
+  static final String MEDIA_SCAN = "mediaScan";
+
+  static final String ROWS = "rows";
+  static final String BYTES = "bytes";
+
+  private static final boolean CAN_TRACE =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+  private static final String TRACE_PREFIX = "CameraRoll:";
+
+  private static final ConcurrentMap<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, AtomicLong> sCounters = new ConcurrentHashMap<>();
+  private static volatile boolean sTracing;
+
+  // Which of the phases in progress on a thread have a trace section, one bit per nesting level,
+  // so that toggling tracing never leaves a section open or ends someone else's.
+  private static final class OpenPhases {
+    long traced;
+    int depth;
+  }
+
+  private static final ThreadLocal<OpenPhases> sOpenPhases = new ThreadLocal<OpenPhases>() {
+    @Override
+    protected OpenPhases initialValue() {
+      return new OpenPhases();
+    }
+  };
+
+  private PerformanceStats() {
+  }
+
+  /**
+   * Durations in microseconds, bucketed by their highest set bit.
+   */
+  private static final class Histogram {
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    void record(long micros) {
+      int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+      mBuckets.incrementAndGet(bucket);
+      mTotalMicros.addAndGet(micros);
+      long max;
+      while (micros > (max = mMaxMicros.get()) && !mMaxMicros.compareAndSet(max, micros)) {
+        // Retry, another thread recorded a new maximum meanwhile.
+      }
+    }
+
+    /**
+     * @return an upper bound of the given percentile, in milliseconds
+     */
+    private double percentileMs(long[] buckets, long count, double percentile) {
+      long rank = (long) Math.ceil(percentile * count);
+      long seen = 0;
+      for (int bucket = 0; bucket < buckets.length; bucket++) {
+        seen += buckets[bucket];
+        if (seen >= rank) {
+          // Bucket n holds durations below 2^n microseconds.
+          return Math.min(mMaxMicros.get(), (1L << bucket) - 1) / 1000.0;
+        }
+      }
+      return mMaxMicros.get() / 1000.0;
+    }
+
+    WritableMap toMap() {
+      long[] buckets = new long[BUCKET_COUNT];
+      long count = 0;
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+        buckets[bucket] = mBuckets.get(bucket);
+        count += buckets[bucket];
+      }
+      WritableMap stats = new WritableNativeMap();
+      stats.putDouble("count", count);
+      stats.putDouble("totalMs", mTotalMicros.get() / 1000.0);
+      stats.putDouble("meanMs", count == 0 ? 0 : mTotalMicros.get() / 1000.0 / count);
+      stats.putDouble("maxMs", mMaxMicros.get() / 1000.0);
+      stats.putDouble("p50Ms", percentileMs(buckets, count, 0.5));
+      stats.putDouble("p90Ms", percentileMs(buckets, count, 0.9));
+      stats.putDouble("p99Ms", percentileMs(buckets, count, 0.99));
+      return stats;
+    }
+  }
+
+  /**
+   * Start timing a phase on the current thread.
+   *
+   * @return the start time, to pass to {@link #end}
+   */
+  static long start(String phase) {
+    OpenPhases openPhases = sOpenPhases.get();
+    long bit = openPhases.depth < Long.SIZE ? 1L << openPhases.depth : 0;
+    if (sTracing && bit != 0) {
+      beginSection(phase);
+      openPhases.traced |= bit;
+    } else {
+      openPhases.traced &= ~bit;
+    }
+    openPhases.depth++;
+    return System.nanoTime();
+  }
+
+  /**
+   * Stop timing a phase that was started on the current thread with {@link #start}. Phases must be
+   * ended in the reverse order they were started in, so use try/finally.
+   */
+  static void end(String phase, long startNanos) {
+    record(phase, startNanos);
+    OpenPhases openPhases = sOpenPhases.get();
+    if (openPhases.depth == 0) {
+      return;
+    }
+    openPhases.depth--;
+    long bit = openPhases.depth < Long.SIZE ? 1L << openPhases.depth : 0;
+    if ((openPhases.traced & bit) != 0) {
+      endSection();
+    }
+  }
+
+  /**
+   * Record a phase that lasted from {@code startNanos} (as given by {@link System#nanoTime}) until
+   * now, e.g. because it ended on another thread, without a trace section.
+   */
+  static void record(String phase, long startNanos) {
+    getHistogram(phase).record(
+        TimeUnit.NANOSECONDS.toMicros(Math.max(0, System.nanoTime() - startNanos)));
+  }
+
+  static void count(String counter, long amount) {
+    AtomicLong value = sCounters.get(counter);
+    if (value == null) {
+      AtomicLong newValue = new AtomicLong();
+      value = sCounters.putIfAbsent(counter, newValue);
+      if (value == null) {
+        value = newValue;
+      }
+    }
+    value.addAndGet(amount);
+  }
+
+  private static Histogram getHistogram(String phase) {
+    Histogram histogram = sHistograms.get(phase);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = sHistograms.putIfAbsent(phase, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Show phases as systrace sections from now on. This has no effect before API 18.
+   */
+  static void setTracing(boolean tracing) {
+    sTracing = tracing && CAN_TRACE;
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+  private static void beginSection(String phase) {
+    Trace.beginSection(TRACE_PREFIX + phase);
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+  private static void endSection() {
+    Trace.endSection();
+  }
+
+  /**
+   * @return {@code {phases: {<phase>: {count, totalMs, meanMs, maxMs, p50Ms, p90Ms, p99Ms}},
+   *         counters: {rows, bytes}}}
+   */
+  static WritableMap toMap() {
+    WritableMap phases = new WritableNativeMap();
+    for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+      phases.putMap(entry.getKey(), entry.getValue().toMap());
+    }
+    WritableMap counters = new WritableNativeMap();
+    for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet()) {
+      counters.putDouble(entry.getKey(), entry.getValue().get());
+    }
+    WritableMap stats = new WritableNativeMap();
+    stats.putMap("phases", phases);
+    stats.putMap("counters", counters);
+    return stats;
+  }
+
+  /**
+   * Forget everything that was recorded so far. Phases that are in progress are recorded once they
+   * end.
+   */
+  static void reset() {
+    sHistograms.clear();
+    sCounters.clear();
+  }
+}
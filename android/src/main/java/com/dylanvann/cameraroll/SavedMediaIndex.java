@@ -0,0 +1,157 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.CancellationSignal;
+
+/**
+ * The content hashes of the files that {@link CameraRollManager} saved to the gallery, so that
+ * saving the same content again can return the existing copy instead of making another one.
+ *
+ * Lookups are keyed by size first: only a source with the size of a saved file needs to be hashed
+ * before it is copied, other sources are hashed while they are copied.
+ */
+final class SavedMediaIndex extends SQLiteOpenHelper {
+
+  private static final String DATABASE_NAME = "RNCameraRollSavedMedia.db";
+  private static final int DATABASE_VERSION = 1;
+
+  private static final String TABLE_SAVED = "saved";
+  private static final String COLUMN_SIZE = "size";
+  private static final String COLUMN_SHA256 = "sha256";
+  private static final String COLUMN_PATH = "path";
+  private static final String COLUMN_URI = "uri";
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  SavedMediaIndex(Context context) {
+    super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_SAVED + " ("
+        + COLUMN_PATH + " TEXT PRIMARY KEY, "
+        + COLUMN_SIZE + " INTEGER NOT NULL, "
+        + COLUMN_SHA256 + " TEXT NOT NULL, "
+        + COLUMN_URI + " TEXT NOT NULL)");
+    db.execSQL("CREATE INDEX " + TABLE_SAVED + "_size_sha256 ON " + TABLE_SAVED
+        + " (" + COLUMN_SIZE + ", " + COLUMN_SHA256 + ")");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Losing it only means that the next save of each file makes a copy again.
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_SAVED);
+    onCreate(db);
+  }
+
+  /**
+   * @return whether a file of this size was saved, i.e. whether a source of this size should be
+   *         hashed before deciding to copy it
+   */
+  boolean hasSize(long size) {
+    return DatabaseUtils.queryNumEntries(
+        getReadableDatabase(),
+        TABLE_SAVED,
+        COLUMN_SIZE + " = ?",
+        new String[] { String.valueOf(size) }) > 0;
+  }
+
+  /**
+   * Find a saved file with this content that is still there. Entries whose file was deleted or
+   * changed since are forgotten.
+   *
+   * @return the content:// URI of the saved file, or {@code null} if there is none
+   */
+  @Nullable String find(long size, String sha256) {
+    Cursor cursor = getReadableDatabase().query(
+        TABLE_SAVED,
+        new String[] { COLUMN_PATH, COLUMN_URI },
+        COLUMN_SIZE + " = ? AND " + COLUMN_SHA256 + " = ?",
+        new String[] { String.valueOf(size), sha256 },
+        null,
+        null,
+        null);
+    try {
+      while (cursor.moveToNext()) {
+        String path = cursor.getString(0);
+        File file = new File(path);
+        if (file.isFile() && file.length() == size) {
+          return cursor.getString(1);
+        }
+        getWritableDatabase().delete(
+            TABLE_SAVED, COLUMN_PATH + " = ?", new String[] { path });
+      }
+      return null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Remember that the file at {@code path}, with the given size and hash, was saved as {@code uri}.
+   */
+  void put(long size, String sha256, String path, String uri) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_PATH, path);
+    values.put(COLUMN_SIZE, size);
+    values.put(COLUMN_SHA256, sha256);
+    values.put(COLUMN_URI, uri);
+    getWritableDatabase().insertWithOnConflict(
+        TABLE_SAVED, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Android version provides it.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the hash of the contents of {@code file}, as returned by {@link #toHex}
+   * @throws OperationCanceledException if {@code cancellationSignal} is cancelled meanwhile
+   */
+  static String hash(File file, CancellationSignal cancellationSignal) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    InputStream input = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        cancellationSignal.throwIfCanceled();
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      input.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+}
@@ -0,0 +1,165 @@
+package com.dylanvann.cameraroll;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore.Video;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+/**
+ * Generates missing video thumbnails on a background thread, so that listing videos never has to
+ * wait for the MediaScanner. Pending ids are processed in order, and JS can move ids to the front
+ * of the queue (e.g. the rows that are currently on screen) or drop them altogether.
+ */
+final class VideoThumbnailQueue {
+
+  interface Listener {
+    /**
+     * Called on the worker thread once a thumbnail has been generated.
+     *
+     * @param path the file path of the thumbnail, or {@code null} if none could be generated
+     */
+    void onThumbnailReady(long videoId, @Nullable String path);
+  }
+
+  private final ContentResolver mResolver;
+  private final Listener mListener;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+  // Guarded by this.
+  private final ArrayDeque<Long> mPending = new ArrayDeque<>();
+  private @Nullable Long mInProgress;
+  private boolean mDraining;
+  private boolean mShutdown;
+
+  VideoThumbnailQueue(ContentResolver resolver, Listener listener) {
+    mResolver = resolver;
+    mListener = listener;
+  }
+
+  /**
+   * Queue thumbnail generation for videos, after anything that is already pending.
+   */
+  synchronized void enqueue(List<Long> videoIds) {
+    if (mShutdown) {
+      return;
+    }
+    for (Long videoId : videoIds) {
+      if (!videoId.equals(mInProgress) && !mPending.contains(videoId)) {
+        mPending.addLast(videoId);
+      }
+    }
+    if (!mDraining && !mPending.isEmpty()) {
+      mDraining = true;
+      mExecutor.execute(mDrainRunnable);
+    }
+  }
+
+  /**
+   * Move pending videos to the front of the queue, keeping their relative order. Ids that are not
+   * pending are ignored.
+   */
+  synchronized void prioritize(List<Long> videoIds) {
+    for (int i = videoIds.size() - 1; i >= 0; i--) {
+      Long videoId = videoIds.get(i);
+      if (mPending.remove(videoId)) {
+        mPending.addFirst(videoId);
+      }
+    }
+  }
+
+  /**
+   * Drop pending videos from the queue. A thumbnail that is already being generated is not
+   * interrupted.
+   */
+  synchronized void cancel(List<Long> videoIds) {
+    for (Iterator<Long> iterator = mPending.iterator(); iterator.hasNext(); ) {
+      if (videoIds.contains(iterator.next())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized void shutdown() {
+    mShutdown = true;
+    mPending.clear();
+    mExecutor.shutdown();
+  }
+
+  private synchronized @Nullable Long takeNext() {
+    mInProgress = mPending.pollFirst();
+    if (mInProgress == null) {
+      mDraining = false;
+    }
+    return mInProgress;
+  }
+
+  private final Runnable mDrainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      Long videoId;
+      while ((videoId = takeNext()) != null) {
+        try {
+          // Ask the MediaScanner to generate the thumbnail, then look up where it was stored.
+          Video.Thumbnails.getThumbnail(mResolver, videoId, Video.Thumbnails.MINI_KIND, null);
+          List<Long> ids = new ArrayList<>(1);
+          ids.add(videoId);
+          mListener.onThumbnailReady(videoId, lookup(mResolver, ids).get(videoId));
+        } catch (RuntimeException e) {
+          FLog.w(ReactConstants.TAG, "Could not generate thumbnail for video " + videoId, e);
+        }
+      }
+    }
+  };
+
+  /**
+   * Get the file paths of the existing MINI_KIND thumbnails for a set of videos, keyed by video
+   * id, using one query per {@link CameraRollManager#MAX_SELECTION_ARGS} ids. Videos that don't
+   * have a thumbnail yet are absent from the result.
+   */
+  static Map<Long, String> lookup(ContentResolver resolver, List<Long> videoIds) {
+    Map<Long, String> thumbnails = new HashMap<>();
+    String[] projection = {
+            Video.Thumbnails.VIDEO_ID,
+            Video.Thumbnails.DATA,
+    };
+    int chunkSize = CameraRollManager.MAX_SELECTION_ARGS;
+    for (int start = 0; start < videoIds.size(); start += chunkSize) {
+      List<Long> chunk = videoIds.subList(start, Math.min(videoIds.size(), start + chunkSize));
+      Cursor videoThumbnailCursor = resolver.query(
+              Video.Thumbnails.EXTERNAL_CONTENT_URI,
+              projection,
+              Video.Thumbnails.KIND + " = " + Video.Thumbnails.MINI_KIND + " AND "
+                  + CameraRollManager.selectionIn(Video.Thumbnails.VIDEO_ID, chunk.size()),
+              CameraRollManager.toSelectionArgs(chunk),
+              null);
+      if (videoThumbnailCursor == null) {
+        continue;
+      }
+      try {
+        int videoIdIndex = videoThumbnailCursor.getColumnIndex(Video.Thumbnails.VIDEO_ID);
+        int pathIndex = videoThumbnailCursor.getColumnIndex(Video.Thumbnails.DATA);
+        while (videoThumbnailCursor.moveToNext()) {
+          thumbnails.put(
+              videoThumbnailCursor.getLong(videoIdIndex),
+              videoThumbnailCursor.getString(pathIndex));
+        }
+      } finally {
+        videoThumbnailCursor.close();
+      }
+    }
+    return thumbnails;
+  }
+}
@@ -1,12 +1,12 @@
-import { NativeModules } from 'react-native'
+import { DeviceEventEmitter, NativeModules } from 'react-native'
 
 const { CameraRoll } = NativeModules
 
 // No default album needed for android.
 const getDefaultAlbum = () => Promise.resolve({})
 
-const getAlbums = () =>
-  CameraRoll.getAlbums({})
+const getAlbums = (options = {}) =>
+  CameraRoll.getAlbums(options)
   .then(res => res.albums)
 
 const extractAsset = asset => ({
@@ -16,25 +16,170 @@ const extractAsset = asset => ({
   isVideo: asset.mediaType === 'video',
   timeStamp: asset.creationDate * 1000,
   fileName: asset.fileName,
+  thumbnailPending: asset.thumbnailPending === true,
 })
 
-const getPhotos = (album, options) => {
+const toNativeOptions = (album, options) => {
   const allOptions = {
     albumId: album.id,
     ...options,
-    after: `${options.after}`,
     first: options.first,
   }
-  return CameraRoll.getPhotos(allOptions)
+  // The cursor is an opaque token, only pass it along once we have one.
+  if (options.after == null) {
+    delete allOptions.after
+  } else {
+    allOptions.after = `${options.after}`
+  }
+  return allOptions
+}
+
+// With format: 'columnar' assets are passed through as {length, columns, dictionaries}, with one
+// array per field, instead of being extracted one by one.
+const extractAssets = (assets, options) =>
+  (options.format === 'columnar' ? assets : assets.map(extractAsset))
+
+const getPhotos = (album, options) =>
+  CameraRoll.getPhotos(toNativeOptions(album, options))
   .then(data => ({
     after: data.page_info.end_cursor,
     hasMore: data.page_info.has_next_page,
-    assets: data.assets.map(extractAsset),
+    assets: extractAssets(data.assets, options),
   }))
+
+// Counts the assets getPhotos would return for the same album and filters (mediaType, fromDate,
+// toDate, minWidth, minHeight, mimeTypes), without loading them.
+const getAssetCount = (album, options = {}) =>
+  CameraRoll.getAssetCount({ albumId: album.id, ...options })
+
+// Counts the assets per 'day', 'month' or 'year' (options.granularity). Each section's
+// firstCursor can be passed to getPhotos as `after` to jump to it.
+const getDateSections = (album, options = {}) =>
+  CameraRoll.getDateSections({ albumId: album.id, ...options })
+    .then(({ sections }) => sections)
+
+// Resolves with {assets, missingIds}, the assets in the order of ids.
+const getAssetsByIds = (ids, options = {}) =>
+  CameraRoll.getAssetsByIds(ids, options)
+  .then(data => ({
+    assets: extractAssets(data.assets, options),
+    missingIds: data.missingIds,
+  }))
+
+// Saves a photo or video ({type: 'video'}) and resolves with its uri. onProgress is called with
+// {bytesWritten, totalBytes} while it is copied. Pass a requestId to be able to cancel it.
+let saveCount = 0
+const saveToCameraRoll = (uri, options = {}, onProgress) => {
+  saveCount += 1
+  const requestId = options.requestId || `save-${saveCount}`
+  const subscription = DeviceEventEmitter.addListener('CameraRollSaveProgress', (event) => {
+    if (event.requestId === requestId && onProgress) {
+      onProgress(event)
+    }
+  })
+  return CameraRoll.saveToCameraRollWithOptions(uri, { ...options, requestId })
+  .then((savedUri) => {
+    subscription.remove()
+    return savedUri
+  }, (error) => {
+    subscription.remove()
+    throw error
+  })
+}
+
+// Saves [{uri, type, album}] and resolves with one {uri} or {error} per item. onProgress is
+// called with {index, completed, total, error} as each file is copied.
+const saveManyToCameraRoll = (items, options = {}, onProgress) => {
+  saveCount += 1
+  const requestId = options.requestId || `save-${saveCount}`
+  const subscription = DeviceEventEmitter.addListener('CameraRollSaveManyProgress', (event) => {
+    if (event.requestId === requestId && onProgress) {
+      onProgress(event)
+    }
+  })
+  return CameraRoll.saveManyToCameraRoll(items, { ...options, requestId })
+  .then((results) => {
+    subscription.remove()
+    return results
+  }, (error) => {
+    subscription.remove()
+    throw error
+  })
+}
+
+// Like getPhotos, but calls onAssets with each chunk of assets as soon as it has been read. The
+// returned promise resolves with {after, hasMore} once the whole page has been sent.
+let streamCount = 0
+const streamPhotos = (album, options, onAssets) => {
+  streamCount += 1
+  const requestId = options.requestId || `stream-${streamCount}`
+  const subscription = DeviceEventEmitter.addListener('CameraRollChunk', (chunk) => {
+    if (chunk.requestId === requestId && chunk.assets) {
+      onAssets(extractAssets(chunk.assets, options))
+    }
+  })
+  return CameraRoll.streamPhotos({ ...toNativeOptions(album, options), requestId })
+  .then((data) => {
+    subscription.remove()
+    return {
+      after: data.page_info.end_cursor,
+      hasMore: data.page_info.has_next_page,
+    }
+  }, (error) => {
+    subscription.remove()
+    throw error
+  })
+}
+
+// Videos returned with thumbnailPending get their uri through this event once generated.
+const addThumbnailListener = listener =>
+  DeviceEventEmitter.addListener('CameraRollThumbnailReady', listener)
+
+const prioritizeThumbnails = ids => CameraRoll.prioritizeThumbnails(ids)
+
+const cancelThumbnails = ids => CameraRoll.cancelThumbnails(ids)
+
+// Cancels a getPhotos or getAlbums call that was passed the same requestId option, which then
+// rejects with E_CANCELLED. Resolves with whether there was anything left to cancel.
+const cancel = requestId => CameraRoll.cancel(requestId)
+
+// Reports {inserted, updated, deleted} whenever photos or videos change on the device.
+let changeListenerCount = 0
+const addChangeListener = (listener) => {
+  const subscription = DeviceEventEmitter.addListener('CameraRollChanged', listener)
+  changeListenerCount += 1
+  if (changeListenerCount === 1) {
+    CameraRoll.startObservingChanges()
+  }
+  let removed = false
+  return {
+    remove: () => {
+      if (removed) {
+        return
+      }
+      removed = true
+      subscription.remove()
+      changeListenerCount -= 1
+      if (changeListenerCount === 0) {
+        CameraRoll.stopObservingChanges()
+      }
+    },
+  }
 }
 
 export default {
   getDefaultAlbum,
   getAlbums,
   getPhotos,
+  streamPhotos,
+  getAssetCount,
+  getDateSections,
+  getAssetsByIds,
+  saveToCameraRoll,
+  saveManyToCameraRoll,
+  addThumbnailListener,
+  prioritizeThumbnails,
+  cancelThumbnails,
+  addChangeListener,
+  cancel,
 }
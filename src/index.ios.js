@@ -75,8 +75,53 @@ const getPhotos = (album, options) => {
   }))
 }
 
+// The whole page is delivered in one chunk on iOS.
+const streamPhotos = (album, options, onAssets) =>
+  getPhotos(album, options)
+  .then(({ assets, ...rest }) => {
+    onAssets(assets)
+    return rest
+  })
+
+// Filters are not supported on iOS, this is the size of the whole album.
+const getAssetCount = album => Promise.resolve(album.assetCount)
+
+const getDateSections = () =>
+  Promise.reject(new Error('getDateSections is not supported on iOS'))
+
+const getAssetsByIds = () =>
+  Promise.reject(new Error('getAssetsByIds is not supported on iOS'))
+
+const saveToCameraRoll = () =>
+  Promise.reject(new Error('saveToCameraRoll is not supported on iOS'))
+
+const saveManyToCameraRoll = () =>
+  Promise.reject(new Error('saveManyToCameraRoll is not supported on iOS'))
+
+// Thumbnails are always available on iOS, these only exist for parity with Android.
+const addThumbnailListener = () => ({ remove: () => {} })
+
+const prioritizeThumbnails = () => {}
+
+const cancelThumbnails = () => {}
+
+const addChangeListener = () => ({ remove: () => {} })
+
+const cancel = () => Promise.resolve(false)
+
 export default {
   getDefaultAlbum,
   getAlbums,
   getPhotos,
+  streamPhotos,
+  getAssetCount,
+  getDateSections,
+  getAssetsByIds,
+  saveToCameraRoll,
+  saveManyToCameraRoll,
+  addThumbnailListener,
+  prioritizeThumbnails,
+  cancelThumbnails,
+  addChangeListener,
+  cancel,
 }